@@ -0,0 +1,77 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completes once a target number of acknowledgements have been received.
+ * 
+ * Acknowledgement handlers call ack(), and the waiting operation parks in 
+ * await() until the target is reached or its timeout expires.
+ */
+public class AckLatch {
+
+    /**
+     * Expires every pending wait.
+     */
+    private static TimerWheel timers;
+
+    private final int targetCount;
+    private final AtomicInteger count;
+
+    private final CompletableFuture<Void> completion;
+
+    public AckLatch(int _targetCount) {
+        targetCount = _targetCount;
+        count = new AtomicInteger();
+
+        completion = new CompletableFuture<Void>();
+        if (_targetCount <= 0) completion.complete(null);
+    }
+
+    /**
+     * Records one acknowledgement.
+     */
+    public void ack() {
+        if (count.incrementAndGet() >= targetCount) completion.complete(null);
+    }
+
+    public int getCount() { return count.get(); }
+
+    public boolean isComplete() { return completion.isDone() && !completion.isCompletedExceptionally(); }
+
+    /**
+     * Future that completes with the latch, or completes 
+     * exceptionally with a TimeoutException once await times out.
+     */
+    public CompletableFuture<Void> future() { return completion; }
+
+    /**
+     * Waits for all acknowledgements to be received.
+     * 
+     * After a certain amount of time waiting, a timeout exception will be thrown.
+     */
+    public void await(int _timeout) throws TimeoutException {
+        TimerWheel.Timeout timeout = getTimers().schedule(
+            () -> completion.completeExceptionally(new TimeoutException("timed out while waiting for condition")), 
+            _timeout);
+
+        try {
+            completion.get();
+        } catch (ExecutionException e) {
+            throw (TimeoutException) e.getCause();
+        } catch (InterruptedException e) {
+            throw new TimeoutException("interrupted while waiting for condition");
+        } finally {
+            timeout.cancel();
+        }
+    }
+
+    private static synchronized TimerWheel getTimers() {
+        if (timers == null) {
+            timers = new TimerWheel(10, 512, "tmr");
+            timers.start();
+        }
+
+        return timers;
+    }
+}
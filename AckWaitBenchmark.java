@@ -0,0 +1,139 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the CPU used while many stores wait for their dstores' acknowledgements.
+ *
+ * Usage: java AckWaitBenchmark [stores] [timeout millis] [replication factor] [timeout percent]
+ * e.g.   java AckWaitBenchmark 1000 5000 3 50
+ *
+ * Adds each file to the index as being stored and waits for its STORE
+ * acknowledgements through Index.resetStoreAcks, one thread per store, as
+ * the controller does. An acknowledging thread then sends every acknowledgement
+ * for most stores at random times within the first half of the timeout. The
+ * rest get one acknowledgement too few, plus a repeated one and one from a
+ * dstore that wasn't chosen, so they time out. Prints how many stores
+ * completed and timed out, the process CPU time used while they waited,
+ * which should be close to zero, and how late the timeouts fired.
+ */
+public class AckWaitBenchmark {
+
+    /**
+     * An acknowledgement to send, at a time after the stores start waiting.
+     */
+    private static class Ack implements Comparable<Ack> {
+        final long time;
+        final String fileName;
+        final int port;
+
+        Ack(long _time, String _fileName, int _port) {
+            time = _time;
+            fileName = _fileName;
+            port = _port;
+        }
+
+        public int compareTo(Ack _other) { return Long.compare(time, _other.time); }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int storeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int timeout = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int replicationFactor = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int timeoutPercent = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+        Index.setup();
+
+        Random random = new Random(1);
+        List<Ack> acks = new ArrayList<Ack>();
+        List<Integer> ports = new ArrayList<Integer>();
+        for (int r = 0; r < replicationFactor; r++) ports.add(10000 + r);
+
+        int expectedTimeouts = 0;
+        DstoreAcks[] storeAcks = new DstoreAcks[storeCount];
+        for (int i = 0; i < storeCount; i++) {
+            String fileName = "file" + i;
+            Index.addFile(fileName, 1);
+            storeAcks[i] = Index.resetStoreAcks(fileName, ports);
+
+            boolean timesOut = random.nextInt(100) < timeoutPercent;
+            if (timesOut) expectedTimeouts++;
+
+            // A store that times out is missing its last acknowledgement, and the extra ones mustn't make up for it.
+            int ackCount = timesOut ? replicationFactor - 1 : replicationFactor;
+            for (int r = 0; r < ackCount; r++) acks.add(new Ack(random.nextInt(timeout / 2), fileName, ports.get(r)));
+            if (timesOut && ackCount > 0) acks.add(new Ack(random.nextInt(timeout / 2), fileName, ports.get(0)));
+            if (timesOut) acks.add(new Ack(random.nextInt(timeout / 2), fileName, 9999));
+        }
+        Collections.sort(acks);
+
+        LongAdder completed = new LongAdder();
+        LongAdder timedOut = new LongAdder();
+        AtomicLong totalOvershoot = new AtomicLong();
+        AtomicLong maxOvershoot = new AtomicLong();
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> waiters = new ArrayList<Thread>();
+        for (int i = 0; i < storeCount; i++) {
+            DstoreAcks waitedAcks = storeAcks[i];
+
+            Thread waiter = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long waitStart = System.nanoTime();
+                try {
+                    waitedAcks.await(timeout);
+                    completed.increment();
+                } catch (TimeoutException e) {
+                    timedOut.increment();
+
+                    long overshoot = (System.nanoTime() - waitStart) / 1000000 - timeout;
+                    totalOvershoot.addAndGet(overshoot);
+                    maxOvershoot.accumulateAndGet(overshoot, Math::max);
+                }
+            });
+            waiters.add(waiter);
+            waiter.start();
+        }
+
+        // Let the waiters settle before measuring.
+        Thread.sleep(500);
+
+        long cpuBefore = os.getProcessCpuTime();
+        long startTime = System.nanoTime();
+        start.countDown();
+
+        // Acknowledge as the dstores would, through the index.
+        for (Ack ack : acks) {
+            long delay = ack.time - (System.nanoTime() - startTime) / 1000000;
+            if (delay > 0) Thread.sleep(delay);
+
+            Index.setStoreAck(ack.fileName, ack.port);
+        }
+
+        for (Thread waiter : waiters) waiter.join();
+
+        long cpuUsed = os.getProcessCpuTime() - cpuBefore;
+        long elapsed = System.nanoTime() - startTime;
+        long timeouts = timedOut.sum();
+
+        System.out.println("stores,completed,timed_out,expected_timeouts,elapsed_ms,cpu_ms,cores_used,mean_timeout_late_ms,max_timeout_late_ms");
+        System.out.println(storeCount + "," + completed.sum() + "," + timeouts + "," + expectedTimeouts + ","
+            + elapsed / 1000000 + "," + cpuUsed / 1000000 + ","
+            + String.format(Locale.ROOT, "%.3f", (double) cpuUsed / elapsed) + ","
+            + (timeouts == 0 ? 0 : totalOvershoot.get() / timeouts) + "," + maxOvershoot.get());
+    }
+}
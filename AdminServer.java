@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Optional HTTP port for operators.
+ * 
+ * Serves the metrics (see Metrics) at /metrics, for Prometheus to scrape, and the 
+ * log level at /loglevel: GET returns it, and POST with a level (e.g. "error") as 
+ * the body sets it. It isn't part of the client protocol, so only whoever can 
+ * reach this port can change how the process logs.
+ */
+public class AdminServer {
+
+    private static HttpServer server;
+
+    /**
+     * Starts serving on the port, on a thread of its own.
+     * @throws IOException if the port can't be opened.
+     */
+    public static void start(int _port) throws IOException {
+        Metrics.gauge("dfs_queue_depth", "queue=\"log\"", "Items waiting in a queue.", Message::getPendingLines);
+
+        server = HttpServer.create(new InetSocketAddress(_port), 0);
+        server.createContext("/metrics", AdminServer::serveMetrics);
+        server.createContext("/loglevel", AdminServer::serveLogLevel);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "admin");
+            thread.setDaemon(true);
+
+            return thread;
+        }));
+        server.start();
+
+        Message.info("serving metrics and the log level on port " + _port, 0);
+    }
+
+    private static void serveMetrics(HttpExchange _exchange) throws IOException {
+        try (_exchange) {
+            if (!_exchange.getRequestMethod().equals("GET")) {
+                _exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            respond(_exchange, 200, "text/plain; version=0.0.4; charset=utf-8", Metrics.render());
+        }
+    }
+
+    private static void serveLogLevel(HttpExchange _exchange) throws IOException {
+        try (_exchange) {
+            String method = _exchange.getRequestMethod();
+
+            if (method.equals("POST")) {
+                String level = new String(_exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).trim();
+
+                try {
+                    Message.setLevel(level);
+                } catch (IllegalArgumentException e) {
+                    respond(_exchange, 400, "text/plain; charset=utf-8", e.getMessage() + "\n");
+                    return;
+                }
+
+                Message.info("log level set to ", level, 0);
+            } else if (!method.equals("GET")) {
+                _exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            respond(_exchange, 200, "text/plain; charset=utf-8", Message.getLevel() + "\n");
+        }
+    }
+
+    private static void respond(HttpExchange _exchange, int _status, String _contentType, String _body) throws IOException {
+        byte[] body = _body.getBytes(StandardCharsets.UTF_8);
+
+        _exchange.getResponseHeaders().set("Content-Type", _contentType);
+        _exchange.sendResponseHeaders(_status, body.length);
+
+        try (OutputStream out = _exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
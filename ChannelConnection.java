@@ -0,0 +1,200 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Packet connection over a non-blocking socket channel.
+ * 
+ * Bytes are read by the selector listener and split into lines, 
+ * which are queued until the connection's packet handler takes them.
+ */
+public class ChannelConnection implements PacketConnection {
+
+    /**
+     * Queued in place of a line once the channel has reached end of stream.
+     */
+    private static final Object END_OF_STREAM = new Object();
+
+    private SocketChannel channel;
+    private SelectionKey key;
+
+    private ByteArrayOutputStream partialLine;
+    private LinkedBlockingQueue<Object> lines;
+
+    private LinkedList<ByteBuffer> pendingWrites;
+
+    private volatile boolean open;
+
+    /**
+     * Set while a worker is handling this connection's queued lines.
+     */
+    public final AtomicBoolean scheduled;
+
+    public ChannelConnection(SocketChannel _channel) {
+        channel = _channel;
+
+        partialLine = new ByteArrayOutputStream();
+        lines = new LinkedBlockingQueue<Object>();
+        pendingWrites = new LinkedList<ByteBuffer>();
+
+        open = true;
+        scheduled = new AtomicBoolean(false);
+    }
+
+    public void setKey(SelectionKey _key) { key = _key; }
+
+
+
+    //// READING ////
+
+    /**
+     * Splits the bytes read from the channel into lines.
+     * 
+     * Called by the selector thread.
+     */
+    public void receive(ByteBuffer _buffer) {
+        while (_buffer.hasRemaining()) {
+            byte b = _buffer.get();
+
+            if (b == '\n') {
+                byte[] lineBytes = partialLine.toByteArray();
+                int length = lineBytes.length;
+                if (length > 0 && lineBytes[length - 1] == '\r') length--;
+
+                lines.add(new String(lineBytes, 0, length));
+                partialLine.reset();
+            } else {
+                partialLine.write(b);
+            }
+        }
+    }
+
+    /**
+     * Marks the end of the stream, so the handler sees a null packet.
+     */
+    public void receiveEndOfStream() { 
+        lines.add(END_OF_STREAM); 
+    }
+
+    public boolean hasLines() { return !lines.isEmpty(); }
+
+    /**
+     * Returns the next queued line without waiting.
+     * 
+     * Returns null if no line is queued or the stream has ended.
+     */
+    public String pollLine() {
+        Object line = lines.poll();
+        if (line == END_OF_STREAM) { 
+            lines.add(END_OF_STREAM);
+            return null;
+        }
+
+        return (String) line;
+    }
+
+    /**
+     * Returns true if the next queued line is the end of the stream.
+     */
+    public boolean atEndOfStream() { return lines.peek() == END_OF_STREAM; }
+
+    /**
+     * Waits for the next line for up to the controller timeout.
+     */
+    @Override
+    public String readLine() throws IOException {
+        try {
+            Object line = lines.poll(Controller.getTimeout(), TimeUnit.MILLISECONDS);
+            if (line == null) throw new IOException("timed out while waiting for packet");
+            if (line == END_OF_STREAM) {
+                lines.add(END_OF_STREAM);
+                return null;
+            }
+
+            return (String) line;
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for packet");
+        }
+    }
+
+
+
+    //// WRITING ////
+
+    /**
+     * Writes as much of the packet as the channel accepts, and 
+     * leaves the rest for the selector thread to flush.
+     */
+    @Override
+    public void writeLine(String _packet) {
+        ByteBuffer buffer = ByteBuffer.wrap((_packet + "\n").getBytes());
+
+        synchronized (pendingWrites) {
+            try {
+                if (pendingWrites.isEmpty()) channel.write(buffer);
+
+                if (buffer.hasRemaining()) {
+                    pendingWrites.add(buffer);
+
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    key.selector().wakeup();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Flushes pending writes.
+     * 
+     * Called by the selector thread when the channel is writable.
+     */
+    public void flush() throws IOException {
+        synchronized (pendingWrites) {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer buffer = pendingWrites.getFirst();
+                channel.write(buffer);
+
+                if (buffer.hasRemaining()) return;
+
+                pendingWrites.removeFirst();
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+
+
+    //// CONNECTION ////
+
+    @Override
+    public boolean isConnected() { return open && channel.isOpen(); }
+
+    @Override
+    public void close() {
+        open = false;
+
+        try {
+            if (key != null) key.cancel();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String getAddress() {
+        Socket socket = channel.socket();
+
+        return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+    }
+}
@@ -1,32 +1,80 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ClientDstoreListener extends Thread {
 
-    private Socket socket;
+    // Latency of each client operation, and of its phases.
+    private static final LatencyHistogram STORE_LATENCY = LatencyStats.get("store");
+    private static final LatencyHistogram STORE_INDEX_LATENCY = LatencyStats.get("store.index");
+    private static final LatencyHistogram STORE_TO_LATENCY = LatencyStats.get("store.store_to");
+    private static final LatencyHistogram STORE_ACKS_LATENCY = LatencyStats.get("store.acks");
+    private static final LatencyHistogram STORE_COMPLETE_LATENCY = LatencyStats.get("store.complete");
+    private static final LatencyHistogram LOAD_LATENCY = LatencyStats.get("load");
+    private static final LatencyHistogram LOAD_INDEX_LATENCY = LatencyStats.get("load.index");
+    private static final LatencyHistogram LOAD_FROM_LATENCY = LatencyStats.get("load.load_from");
+    private static final LatencyHistogram RELOAD_LATENCY = LatencyStats.get("reload");
+    private static final LatencyHistogram REMOVE_LATENCY = LatencyStats.get("remove");
+    private static final LatencyHistogram REMOVE_INDEX_LATENCY = LatencyStats.get("remove.index");
+    private static final LatencyHistogram REMOVE_ACKS_LATENCY = LatencyStats.get("remove.acks");
+    private static final LatencyHistogram REMOVE_COMPLETE_LATENCY = LatencyStats.get("remove.complete");
+    private static final LatencyHistogram LIST_LATENCY = LatencyStats.get("list");
+
+    // Metrics served on the admin port (see AdminServer).
+    private static final AtomicLong CONNECTIONS = Metrics.gauge("dfs_connections", "", "Open connections.");
+    private static final AtomicLong STORES_IN_FLIGHT = Metrics.gauge("dfs_inflight_operations", "operation=\"store\"", 
+        "Operations being processed.");
+    private static final AtomicLong LOADS_IN_FLIGHT = Metrics.gauge("dfs_inflight_operations", "operation=\"load\"", 
+        "Operations being processed.");
+    private static final AtomicLong REMOVES_IN_FLIGHT = Metrics.gauge("dfs_inflight_operations", "operation=\"remove\"", 
+        "Operations being processed.");
+    private static final AtomicLong LISTS_IN_FLIGHT = Metrics.gauge("dfs_inflight_operations", "operation=\"list\"", 
+        "Operations being processed.");
+    private static final LongAdder BYTES_RECEIVED = Metrics.counter("dfs_received_bytes_total", "", "Bytes received.");
+    private static final LongAdder BYTES_SENT = Metrics.counter("dfs_sent_bytes_total", "", "Bytes sent.");
+    private static final LongAdder STORE_ACK_TIMEOUTS = Metrics.counter("dfs_ack_timeouts_total", "operation=\"store\"", 
+        "Waits for dstore acknowledgements that timed out.");
+    private static final LongAdder REMOVE_ACK_TIMEOUTS = Metrics.counter("dfs_ack_timeouts_total", "operation=\"remove\"", 
+        "Waits for dstore acknowledgements that timed out.");
+
+    private PacketConnection connection;
 
-    private BufferedReader in;
-    private PrintWriter out;
+    /**
+     * Port of the dstore the client was last told to load from, or -1 if it isn't loading.
+     */
+    private int loadingFrom;
 
     /**
-     * Current loading attempt.
-     * 
-     * Corrosponds to the next dstore to load from.
+     * The client's current load, counted against its dstore, or null if it isn't loading.
+     */
+    private LoadBalancer.Load currentLoad;
+
+    /**
+     * Dstores that failed to load the current file for this client.
      */
-    public Count loadAttempt;
+    private Set<Integer> failedLoads;
 
     private int dstorePort;
 
+    private boolean closed;
+
     public ClientDstoreListener(Socket _socket) throws IOException {
-        socket = _socket;
+        this(new SocketConnection(_socket));
+    }
 
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
+    public ClientDstoreListener(PacketConnection _connection) {
+        connection = _connection;
+        CONNECTIONS.incrementAndGet();
 
-        loadAttempt = new Count();
+        loadingFrom = -1;
+        failedLoads = new HashSet<Integer>();
     }
 
     @Override
@@ -35,31 +83,25 @@ public class ClientDstoreListener extends Thread {
     }
 
     /**
-     * Checks if the client socket is connected and open.
+     * Checks if the client connection is connected and open.
      */
     public boolean isConnected() {
-        if (socket == null) return false;
-        if (!socket.isConnected()) return false;
-        if (socket.isClosed()) return false;
-
-        return true;
+        return connection.isConnected();
     }
 
     private void closeConnection() {
-        out.close();
-        try {
-            in.close();
-            socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        if (closed) return;
+        closed = true;
 
-        socket = null;
+        connection.close();
+        CONNECTIONS.decrementAndGet();
 
-        Controller.getDStoreListeners().remove(this);
+        finishLoad();
+
+        Controller.removeDStoreListener(this);
     }
 
-    private boolean isDstore() {
+    public boolean isDstore() {
         return Controller.getDStoreListeners().contains(this);
     }
 
@@ -67,15 +109,33 @@ public class ClientDstoreListener extends Thread {
     //// PROCESS PACKETS ////
 
     private void handleNextPacket() {
+        String packet;
         try {
-            if (!RebalanceModule.isRebalancing() || isDstore()) {
-                String packet = in.readLine();
-                Message.process("processing next packet: " + packet, 0);
-                
-                processPacket(packet);
+            packet = connection.readLine();
+        } catch (IOException e) {
+            closeConnection();
 
-                Message.success("packet processed correctly", 0);
-            }
+            Message.info("connection closed", 0);
+            return;
+        }
+
+        handlePacket(packet);
+    }
+
+    /**
+     * Processes a packet read from the connection.
+     * 
+     * A null packet means the connection has been closed by the other end.
+     */
+    public void handlePacket(String _packet) {
+        if (_packet != null) BYTES_RECEIVED.add(_packet.length() + 1);
+
+        try {
+            Message.process("processing next packet: ", _packet, 0);
+
+            processPacket(_packet);
+
+            Message.success("packet processed correctly", 0);
         } catch (PacketException e) {
             Message.error(e.getMessage(), 1);
 
@@ -114,6 +174,12 @@ public class ClientDstoreListener extends Thread {
                 arguments[i] = packetContent[i + 1];
         }
 
+        // Clients send their next packet once they have finished loading.
+        if (!command.equals("RELOAD")) finishLoad();
+
+        // Client requests wait while the index is being recovered from the dstores.
+        if (isClientRequest(command)) RecoveryModule.awaitServing(Controller.getTimeout());
+
         if (command.equals("STORE")) processStore(arguments);
         else if (command.equals("LOAD")) processLoad(arguments);
         else if (command.equals("RELOAD")) processReload(arguments);
@@ -124,7 +190,10 @@ public class ClientDstoreListener extends Thread {
         } else if (command.equals("REMOVE_ACK")) processRemoveAck(arguments);
         else if (command.equals("STORE_ACK")) processStoreAck(arguments);
         else if (command.equals("REBALANCE_COMPLETE")) processRebalanceComplete(arguments);
+        else if (command.equals("REBALANCE_FAILED")) processRebalanceFailed(arguments);
         else if (command.equals("JOIN")) processJoin(arguments);
+        else if (command.equals("INVENTORY")) processInventory(arguments);
+        else if (command.equals("STATS")) processStats(arguments);
         else if (command.equals("ERROR_NOT_ENOUGH_DSTORES")) processError(command);
         else if (command.equals("ERROR_FILE_DOES_NOT_EXIST")) processError(command);
         else throw new PacketException("incorrect/missing command");
@@ -132,6 +201,15 @@ public class ClientDstoreListener extends Thread {
 
 
 
+    private boolean isClientRequest(String _command) {
+        if (_command.equals("LIST")) return !isDstore();
+
+        return _command.equals("STORE") || _command.equals("LOAD") 
+            || _command.equals("RELOAD") || _command.equals("REMOVE");
+    }
+
+
+
     //// STORE OPERATION ////
 
     /**
@@ -140,7 +218,14 @@ public class ClientDstoreListener extends Thread {
     private void processStore(String[] _arguments) throws PacketException, IOException, TimeoutException {
         Message.info("STORE request", 1);
 
-        if (validateStore(_arguments)) performStore(_arguments[0], Integer.valueOf(_arguments[1]));
+        long startTime = System.nanoTime();
+        STORES_IN_FLIGHT.incrementAndGet();
+        try {
+            if (validateStore(_arguments)) performStore(_arguments[0], Integer.valueOf(_arguments[1]), startTime);
+        } finally {
+            STORES_IN_FLIGHT.decrementAndGet();
+            STORE_LATENCY.recordSince(startTime);
+        }
     }
 
     private boolean validateStore(String[] _arguments) throws PacketException, IOException {
@@ -166,6 +251,10 @@ public class ClientDstoreListener extends Thread {
 
         String fileName = _arguments[0];
 
+        // Names the index log can't record are rejected before the index is changed.
+        if (fileName.getBytes(StandardCharsets.UTF_8).length > IndexLog.MAX_NAME_BYTES) 
+            throw new PacketException("file name must be at most " + IndexLog.MAX_NAME_BYTES + " bytes");
+
         // Check if file exists.
         if (Index.fileExists(fileName)) {
             Message.info("file already exists", 1);
@@ -177,41 +266,68 @@ public class ClientDstoreListener extends Thread {
         return true;
     }
 
-    private void performStore(String _fileName, int _fileSize) throws IOException, PacketException, TimeoutException {
-        // Add file to the file index.
+    /**
+     * Stores the file, timing each phase from the start of the request.
+     */
+    private void performStore(String _fileName, int _fileSize, long _startTime) throws IOException, PacketException, TimeoutException {
+        // Add file to the file index in the "storing" state.
         try {
-            Index.addFile(_fileName, _fileSize);
+            if (!Index.addFile(_fileName, _fileSize)) {
+                Message.info("file already exists", 1);
+
+                respond("ERROR_FILE_ALREADY_EXISTS");
+                return;
+            }
         } catch (IndexException e) {
             throw new PacketException(e.getMessage());
         }
+        long phaseTime = STORE_INDEX_LATENCY.recordSince(_startTime);
 
-        // Set "storing file in process" to true.
-        Index.storingFile(_fileName, true);
-
-        // Collect port number from each dstore listener.
+        // Choose R dstores to store the file on, and collect their port numbers.
+        List<ClientDstoreListener> targets = Controller.getPlacementPolicy().choose(
+            _fileName, Controller.getDStoreListeners(), Controller.getReplicationFactor());
         String dStorePorts = "";
-        for (ClientDstoreListener dStoreListener : Controller.getDStoreListeners())
-            dStorePorts += " " + dStoreListener.getClientPort();
+        List<Integer> targetPorts = new ArrayList<Integer>();
+        for (ClientDstoreListener target : targets) {
+            dStorePorts += " " + target.getClientPort();
+            targetPorts.add(target.getClientPort());
+        }
+
+        // Expect a store ack from each chosen dstore.
+        DstoreAcks storeAcks;
+        try {
+            storeAcks = Index.resetStoreAcks(_fileName, targetPorts);
+        } catch (IndexException e) {
+            throw new PacketException(e.getMessage());
+        }
 
         respond("STORE_TO" + dStorePorts);
+        phaseTime = STORE_TO_LATENCY.recordSince(phaseTime);
 
-        // Wait for number of received store acks to match the number of dstores.
+        // Wait for every chosen dstore to acknowledge the store.
         try {
-            ConditionTimeout.waitForCount(Index.getStoreAcks(_fileName), 
-                                          Controller.getDStoreListeners().size(), 
-                                          Controller.getTimeout());
+            storeAcks.await(Controller.getTimeout());
         } catch (TimeoutException e) {
+            STORE_ACK_TIMEOUTS.increment();
 
             // If waiting times out, then remove file from the index.
             Index.removeFile(_fileName);
 
+            // The next rebalance removes any copies the dstores did store.
+            RebalanceModule.operationFailed(_fileName, targetPorts);
+
             throw e;
         }
+        phaseTime = STORE_ACKS_LATENCY.recordSince(phaseTime);
 
-        // Set "storing file in process" to false.
-        Index.storingFile(_fileName, false);
+        // Move file from "storing" to "stored".
+        Index.storeComplete(_fileName);
+
+        // Only report the store once it would survive a controller restart.
+        syncIndex();
 
         respond("STORE_COMPLETE");
+        STORE_COMPLETE_LATENCY.recordSince(phaseTime);
     }
 
 
@@ -224,7 +340,19 @@ public class ClientDstoreListener extends Thread {
     private void processLoad(String[] _arguments) throws PacketException, IOException {
         Message.info("LOAD request", 1);
 
-        if (validateLoad(_arguments)) performLoad(_arguments[0]);
+        long startTime = System.nanoTime();
+        LOADS_IN_FLIGHT.incrementAndGet();
+        try {
+            if (validateLoad(_arguments)) {
+                long phaseTime = LOAD_INDEX_LATENCY.recordSince(startTime);
+
+                performLoad(_arguments[0]);
+                LOAD_FROM_LATENCY.recordSince(phaseTime);
+            }
+        } finally {
+            LOADS_IN_FLIGHT.decrementAndGet();
+            LOAD_LATENCY.recordSince(startTime);
+        }
     }
 
     /**
@@ -233,7 +361,14 @@ public class ClientDstoreListener extends Thread {
     private void processReload(String[] _arguments) throws PacketException, IOException {
         Message.info("RELOAD request", 1);
 
-        if (validateLoad(_arguments)) performReload(_arguments[0]);
+        long startTime = System.nanoTime();
+        LOADS_IN_FLIGHT.incrementAndGet();
+        try {
+            if (validateLoad(_arguments)) performReload(_arguments[0]);
+        } finally {
+            LOADS_IN_FLIGHT.decrementAndGet();
+            RELOAD_LATENCY.recordSince(startTime);
+        }
     }
 
     private boolean validateLoad(String[] _arguments) throws IOException, PacketException {
@@ -280,28 +415,55 @@ public class ClientDstoreListener extends Thread {
     }
 
     private void performLoad(String _fileName) throws IOException {
-        loadAttempt.reset();
-
-        int dStorePort = Controller.getDStoreListeners().get(0).getClientPort();
-        int fileSize = Index.fileSize(_fileName);
+        failedLoads.clear();
 
-        respond("LOAD_FROM " + dStorePort + " " + fileSize);
+        respondLoadFrom(_fileName);
     }
 
     private void performReload(String _fileName) throws IOException {
-        loadAttempt.increment();
+        // The client couldn't load from the last dstore.
+        if (loadingFrom != -1) failedLoads.add(loadingFrom);
+        finishLoad();
+
+        respondLoadFrom(_fileName);
+    }
 
-        if (loadAttempt.getCount() >= Controller.getDStoreListeners().size()) {
+    /**
+     * Sends the least busy dstore that holds the file and 
+     * hasn't already failed to load it for this client.
+     */
+    private void respondLoadFrom(String _fileName) {
+        int dStorePort = LoadBalancer.choose(Index.getLoadReplicas(_fileName), failedLoads);
+
+        if (dStorePort == -1) {
             respond("ERROR_LOAD");
             return;
         }
 
-        int dStorePort = Controller.getDStoreListeners().get(loadAttempt.getCount()).getClientPort();
+        // The file may have been removed since its replicas were read.
         int fileSize = Index.fileSize(_fileName);
+        if (fileSize < 0) {
+            respond("ERROR_FILE_DOES_NOT_EXIST");
+            return;
+        }
+
+        loadingFrom = dStorePort;
+        currentLoad = LoadBalancer.loadStarted(dStorePort, Controller.getTimeout());
 
         respond("LOAD_FROM " + dStorePort + " " + fileSize);
     }
 
+    /**
+     * Stops counting the client's current load against its dstore.
+     */
+    private void finishLoad() {
+        if (loadingFrom == -1) return;
+
+        currentLoad.finish();
+        currentLoad = null;
+        loadingFrom = -1;
+    }
+
 
 
     //// REMOVE OPERATION ////
@@ -312,7 +474,14 @@ public class ClientDstoreListener extends Thread {
     private void processRemove(String[] _arguments) throws PacketException, IOException, TimeoutException{
         Message.info("REMOVE request", 1);
 
-        if (validateRemove(_arguments)) performRemove(_arguments[0]);
+        long startTime = System.nanoTime();
+        REMOVES_IN_FLIGHT.incrementAndGet();
+        try {
+            if (validateRemove(_arguments)) performRemove(_arguments[0], startTime);
+        } finally {
+            REMOVES_IN_FLIGHT.decrementAndGet();
+            REMOVE_LATENCY.recordSince(startTime);
+        }
     }
 
     private boolean validateRemove(String[] _arguments) throws IOException, PacketException {
@@ -358,48 +527,75 @@ public class ClientDstoreListener extends Thread {
         return true;
     }
     
-    private void performRemove(String _fileName) throws IOException, TimeoutException {
+    /**
+     * Removes the file, timing each phase from the start of the request.
+     */
+    private void performRemove(String _fileName, long _startTime) throws IOException, PacketException, TimeoutException {
 
-        // Set "removing file in process" to true.
-        Index.removingFile(_fileName, true);
+        // Move file from "stored" to "removing", unless another client got there first.
+        while (!Index.startRemove(_fileName)) {
 
-        // Instruct each dstore to remove the target file.
-        for (ClientDstoreListener dstoreListener : Controller.getDStoreListeners()) {
-            try {
-                // Sends a packet to the dstore to remove the file and waits for an ACK message.
-                removeFile(dstoreListener, _fileName);
-
-                Message.info("removed file from dstore " + dstoreListener.getClientPort(), 1);
-            } catch (TimeoutException e) {
-                Message.error("failed to remove file from dstore " + dstoreListener.getClientPort(), 1);
-            
-                throw e;
+            // A file being moved by a rebalance is removed once it has moved.
+            if (Index.getState(_fileName) == FileState.MOVING) {
+                Message.info(_fileName + " is being moved, waiting for the move to finish", 1);
+
+                Index.awaitMove(_fileName, Controller.getTimeout());
+                continue;
             }
+
+            Message.info(_fileName + " is no longer stored", 1);
+
+            respond("ERROR_FILE_DOES_NOT_EXIST");
+            return;
         }
+        long phaseTime = REMOVE_INDEX_LATENCY.recordSince(_startTime);
 
-        // Remove target file from file index.
-        Index.removeFile(_fileName);
+        // Collect the connected dstores holding the file.
+        List<ClientDstoreListener> holders = new ArrayList<ClientDstoreListener>();
+        List<Integer> holderPorts = new ArrayList<Integer>();
+        for (int replica : Index.getReplicas(_fileName)) {
+            ClientDstoreListener dstoreListener = Controller.getDStoreListener(replica);
+            if (dstoreListener == null) continue;
 
-        respond("REMOVE_COMPLETE");
-    }
+            holders.add(dstoreListener);
+            holderPorts.add(replica);
+        }
 
-    /**
-     * Manages the removal of a file from a dstore.
-     */
-    private void removeFile(ClientDstoreListener _dstoreListener, String _fileName) throws IOException, TimeoutException {
-        // Set the remove ACK flag to false.
-        Index.setRemoveAck(_fileName, false);
+        // Expect a remove ACK from each of them.
+        DstoreAcks removeAcks;
+        try {
+            removeAcks = Index.resetRemoveAcks(_fileName, holderPorts);
+        } catch (IndexException e) {
+            throw new PacketException(e.getMessage());
+        }
+
+        // Instruct every holder to remove the file at once.
+        for (ClientDstoreListener dstoreListener : holders)
+            dstoreListener.respond("REMOVE " + _fileName);
+
+        // Wait for every remove ACK.
+        try {
+            removeAcks.await(Controller.getTimeout());
+        } catch (TimeoutException e) {
+            REMOVE_ACK_TIMEOUTS.increment();
+            Message.error("failed to remove file from dstores " + removeAcks.getPendingPorts(), 1);
 
-        // Send REMOVE instruction to dstore.
-        _dstoreListener.respond("REMOVE " + _fileName);
+            // The next rebalance removes the copies left on them.
+            RebalanceModule.operationFailed(_fileName, removeAcks.getPendingPorts());
 
-        // Wait to receive remove ACK from dstore.
-        ConditionTimeout.waitForFlag(Index.getRemoveAck(_fileName), Controller.getTimeout());
+            throw e;
+        }
+        phaseTime = REMOVE_ACKS_LATENCY.recordSince(phaseTime);
+
+        if (Message.isEnabled(LogLevel.INFO)) Message.info("removed " + _fileName + " from dstores " + holderPorts, 1);
 
-        Message.info("removed " + _fileName + " from dstore ", 1);
+        // Remove target file from file index.
+        Index.removeFile(_fileName);
 
-        // Reset the remove ACK flag to false.
-        Index.setRemoveAck(_fileName, false);
+        syncIndex();
+
+        respond("REMOVE_COMPLETE");
+        REMOVE_COMPLETE_LATENCY.recordSince(phaseTime);
     }
 
 
@@ -412,7 +608,14 @@ public class ClientDstoreListener extends Thread {
     private void processClientList(String[] _arguments) throws PacketException, IOException {
         Message.info("LIST request", 1);
 
-        if (validateClientList(_arguments)) performClientList();
+        long startTime = System.nanoTime();
+        LISTS_IN_FLIGHT.incrementAndGet();
+        try {
+            if (validateClientList(_arguments)) performClientList();
+        } finally {
+            LISTS_IN_FLIGHT.decrementAndGet();
+            LIST_LATENCY.recordSince(startTime);
+        }
     }
 
     private boolean validateClientList(String[] _arguments) throws IOException, PacketException {
@@ -448,7 +651,7 @@ public class ClientDstoreListener extends Thread {
 
         Message.info("giving files to rebalancing operation", 1);
         RebalanceModule.addFileList(dstorePort, _arguments);
-        RebalanceModule.setListAck();
+        RebalanceModule.setListAck(dstorePort);
     }
 
 
@@ -466,7 +669,7 @@ public class ClientDstoreListener extends Thread {
 
         String fileName = _arguments[0];
         
-        Index.setRemoveAck(fileName, true);
+        Index.setRemoveAck(fileName, dstorePort);
     }
 
 
@@ -484,7 +687,7 @@ public class ClientDstoreListener extends Thread {
 
         String fileName = _arguments[0];
 
-        Index.incrementStoreAcks(fileName);
+        Index.setStoreAck(fileName, dstorePort);
     }
 
 
@@ -498,7 +701,17 @@ public class ClientDstoreListener extends Thread {
             throw new PacketException("REBALANCE_COMPLETE command must have no arugments");
         }
 
-        RebalanceModule.setRebalanceAck();
+        RebalanceModule.setRebalanceAck(dstorePort);
+    }
+
+    private void processRebalanceFailed(String[] _arguments) throws PacketException {
+        Message.error("REBALANCE_FAILED response", 1);
+
+        if (_arguments.length > 0) {
+            throw new PacketException("REBALANCE_FAILED command must have no arugments");
+        }
+
+        RebalanceModule.setRebalanceFailed(dstorePort);
     }
 
 
@@ -508,21 +721,93 @@ public class ClientDstoreListener extends Thread {
     private void processJoin(String[] _arguments) throws PacketException {
         Message.info("JOIN request", 1);
 
-        if (_arguments.length > 0) {
-            throw new PacketException("JOIN command must have no arugments");
+        // "JOIN INVENTORY" means the dstore sends its inventory after its port.
+        boolean withInventory = _arguments.length == 1 && _arguments[0].equals("INVENTORY");
+        if (_arguments.length > 0 && !withInventory) {
+            throw new PacketException("JOIN command must have no arguments or INVENTORY");
         }
 
         try {
-            dstorePort = Integer.valueOf(in.readLine());
+            dstorePort = Integer.valueOf(connection.readLine());
         } catch (NumberFormatException | IOException e) {
             throw new PacketException("failed to get dstore port");
         }
 
+        String[] inventory = null;
+        if (withInventory) {
+            String inventoryPacket;
+            try {
+                inventoryPacket = connection.readLine();
+            } catch (IOException e) {
+                throw new PacketException("failed to get dstore inventory");
+            }
+
+            if (inventoryPacket == null || !inventoryPacket.startsWith("INVENTORY"))
+                throw new PacketException("JOIN INVENTORY must be followed by an INVENTORY packet");
+
+            String[] packetContent = inventoryPacket.split(" ");
+            inventory = Arrays.copyOfRange(packetContent, 1, packetContent.length);
+        }
+
+        // Record the join first, so a rebalance that sees the dstore also lists its files.
+        // A dstore that sent its inventory is recorded once the inventory is in the index.
+        if (!withInventory) RebalanceModule.dstoreJoined(dstorePort, true);
+
+        // Rebalances leave the dstore out until its inventory is merged.
+        RecoveryModule.dstoreJoined(this, inventory);
+
         Controller.addDStoreListener(this);
 
-        Message.info("new dstore has joined", 1);
+        Message.info("new dstore has joined with " + (withInventory ? inventory.length / 2 + " files" : "no inventory"), 1);
+
+        RebalanceModule.requestRebalance();
+    }
+
+
+
+    //// INVENTORY ////
+
+    /**
+     * Process the files (names and sizes) a dstore holds.
+     */
+    private void processInventory(String[] _arguments) throws PacketException {
+        Message.info("INVENTORY response", 1);
+
+        if (!isDstore()) throw new PacketException("INVENTORY must come from a dstore");
+
+        if (_arguments.length % 2 != 0)
+            throw new PacketException("INVENTORY command must have a size for each file");
+
+        RecoveryModule.addInventory(dstorePort, _arguments);
+    }
+
+
+
+    //// PERSISTING ////
+
+    /**
+     * Waits for the index changes so far to be persisted.
+     */
+    private void syncIndex() throws PacketException {
+        try {
+            Index.sync();
+        } catch (IOException e) {
+            throw new PacketException("failed to persist the index: " + e.getMessage());
+        }
+    }
+
+
+
+    //// STATS ////
+
+    /**
+     * Process STATS request, which responds with the latency 
+     * histograms (see LatencyStats.toPackets), in microseconds.
+     */
+    private void processStats(String[] _arguments) throws PacketException {
+        if (_arguments.length != 0) throw new PacketException("STATS command must have no arguments");
 
-        RebalanceModule.rebalanceEarly();
+        for (String packet : LatencyStats.toPackets()) respond(packet);
     }
 
 
@@ -538,9 +823,10 @@ public class ClientDstoreListener extends Thread {
     //// RESPONDING ////
 
     public void respond(String _packet) {
-        out.println(_packet);
+        connection.writeLine(_packet);
+        BYTES_SENT.add(_packet.length() + 1);
 
-        Message.info("sent response: " + _packet, 1);
+        Message.info("sent response: ", _packet, 1);
     }
 
 
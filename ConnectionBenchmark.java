@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Compares the number of open connections with the controller's memory and thread use.
+ * 
+ * Usage: java ConnectionBenchmark <io mode> <max connections> <step>
+ * e.g.   java ConnectionBenchmark virtual 10000 1000
+ * 
+ * A controller is started as a child process using the given io mode, idle client 
+ * connections are opened in steps, and after each step the controller's resident 
+ * memory and thread count are read from /proc and printed as CSV. The 
+ * controller is run by the same JVM as the benchmark, so the virtual
+ * mode needs Java 21 or newer.
+ */
+public class ConnectionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String ioMode = args[0];
+        int maxConnections = Integer.parseInt(args[1]);
+        int step = Integer.parseInt(args[2]);
+
+        int port = freePort();
+        Process controller = startController(port, ioMode);
+        List<Socket> connections = new LinkedList<Socket>();
+
+        try {
+            Thread.sleep(1000);
+
+            System.out.println("mode,connections,threads,rss_kb");
+            printUsage(controller, ioMode, 0);
+
+            while (connections.size() < maxConnections) {
+                for (int i = 0; i < step && connections.size() < maxConnections; i++)
+                    connections.add(new Socket(InetAddress.getLoopbackAddress(), port));
+
+                Thread.sleep(500);
+                printUsage(controller, ioMode, connections.size());
+            }
+        } finally {
+            for (Socket connection : connections) connection.close();
+
+            controller.destroy();
+        }
+    }
+
+    private static Process startController(int _port, String _ioMode) throws IOException {
+        String javaPath = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        ProcessBuilder builder = new ProcessBuilder(javaPath, 
+            "-cp", System.getProperty("java.class.path"), 
+            "Controller", String.valueOf(_port), "1", "1000", "3600000", "io=" + _ioMode);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+        return builder.start();
+    }
+
+    private static void printUsage(Process _process, String _ioMode, int _connections) throws IOException {
+        long threads = 0;
+        long rss = 0;
+
+        for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(_process.pid()), "status"))) {
+            if (line.startsWith("Threads:")) threads = Long.parseLong(line.replaceAll("\\D", ""));
+            if (line.startsWith("VmRSS:")) rss = Long.parseLong(line.replaceAll("\\D", ""));
+        }
+
+        System.out.println(_ioMode + "," + _connections + "," + threads + "," + rss);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
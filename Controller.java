@@ -1,9 +1,13 @@
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.function.Predicate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Controller {
     private static int cPort;
@@ -11,12 +15,53 @@ public class Controller {
     private static int timeout;
     private static int rebalancePeriod;
 
+    /**
+     * Milliseconds without a rebalance request before a rebalance starts, 
+     * and the least milliseconds between rebalances.
+     */
+    private static int rebalanceQuietWindow;
+    private static int rebalanceMinInterval;
+
+    /**
+     * How connections are served: "thread" (one thread per connection), 
+     * "virtual" (one virtual thread per connection) or "nio" (selector and worker pool).
+     */
+    private static String ioMode;
+    private static int workerCount;
+
+    /**
+     * Chooses the R dstores each new file is stored on.
+     */
+    private static PlacementPolicy placementPolicy;
+
     private static List<ClientDstoreListener> dStoreListeners;
 
+    /**
+     * Connected dstores' listeners by port, for looking up a single dstore.
+     */
+    private static ConcurrentHashMap<Integer, ClientDstoreListener> dStoreListenersByPort;
+
+    /**
+     * Port metrics are served on over HTTP, or -1 if they aren't.
+     */
+    private static int adminPort;
+
     public static void main(String[] args) throws IOException, IndexException {
         if (setupServer(args)) {
+            RecoveryModule.setup();
             RebalanceModule.scheduleRebalance();
 
+            registerMetrics();
+            if (adminPort != -1) AdminServer.start(adminPort);
+
+            // Clean up after the stores and removes the last run of the controller didn't finish.
+            for (Map.Entry<String, int[]> unfinishedFile : Index.getUnfinishedFiles().entrySet()) {
+                List<Integer> ports = new ArrayList<Integer>();
+                for (int port : unfinishedFile.getValue()) ports.add(port);
+
+                RebalanceModule.operationFailed(unfinishedFile.getKey(), ports);
+            }
+
             listenForConnections();
         }
     }
@@ -26,9 +71,8 @@ public class Controller {
 
         boolean setupCorrectly = true;
 
-        Index.setup();
-
-        dStoreListeners = new ArrayList<ClientDstoreListener>();
+        dStoreListeners = new CopyOnWriteArrayList<ClientDstoreListener>();
+        dStoreListenersByPort = new ConcurrentHashMap<Integer, ClientDstoreListener>();
 
         //// Validating arguments ////
         try {
@@ -96,6 +140,64 @@ public class Controller {
 
             setupCorrectly = false;
         }
+        try {
+            Options options = new Options(_args, 4);
+
+            Message.setup(options);
+
+            ioMode = options.get("io", "thread");
+            if (ioMode.equals("virtual")) HandlerThreads.enableVirtualThreads();
+            else if (!ioMode.equals("thread") && !ioMode.equals("nio")) {
+                Message.error("invalid io mode (must be thread, virtual or nio)", 1);
+
+                setupCorrectly = false;
+            }
+
+            String placement = options.get("placement", "leastloaded");
+            if (placement.equals("leastloaded")) placementPolicy = new LeastLoadedPlacement();
+            else if (placement.equals("random")) placementPolicy = new RandomPlacement();
+            else {
+                Message.error("invalid placement (must be leastloaded or random)", 1);
+
+                setupCorrectly = false;
+            }
+
+            rebalanceQuietWindow = options.getInt("quietwindow", 250);
+            rebalanceMinInterval = options.getInt("mininterval", 1000);
+            if (!(rebalanceQuietWindow >= 0 && rebalanceMinInterval >= 0)) {
+                Message.error("invalid rebalance quiet window or minimum interval (must be >=0)", 1);
+
+                setupCorrectly = false;
+            }
+
+            int snapshotInterval = options.getInt("snapshotevery", 1000000);
+            if (!(snapshotInterval > 0)) {
+                Message.error("invalid snapshot interval (must be >0)", 1);
+
+                setupCorrectly = false;
+            }
+
+            // The index is only persisted if a metadata folder is given.
+            if (options.has("metadata") && setupCorrectly) setupPersistentIndex(new File(options.get("metadata", "")), snapshotInterval);
+            else Index.setup();
+
+            workerCount = options.getInt("workers", 2 * Runtime.getRuntime().availableProcessors());
+            if (!(workerCount > 0)) {
+                Message.error("invalid worker count (must be >0)", 1);
+
+                setupCorrectly = false;
+            }
+
+            adminPort = options.getInt("admin", -1);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            Message.error(e.getMessage(), 1);
+
+            setupCorrectly = false;
+        } catch (IOException e) {
+            Message.error("failed to recover the index: " + e.getMessage(), 1);
+
+            setupCorrectly = false;
+        }
         //// .................... ////
 
         if (setupCorrectly) Message.success("server setup complete", 0);
@@ -104,11 +206,59 @@ public class Controller {
         return setupCorrectly;
     }
 
+    /**
+     * Recovers the index from the metadata folder, and keeps persisting it there.
+     * @throws IOException
+     */
+    private static void setupPersistentIndex(File _folder, int _snapshotInterval) throws IOException {
+        long start = System.nanoTime();
+
+        Index.setup(_folder, _snapshotInterval);
+
+        Message.info("recovered " + Index.fileCount() + " files from " + _folder 
+            + " in " + (System.nanoTime() - start) / 1000000 + "ms", 1);
+    }
+
+    /**
+     * Registers the metrics that are read from the controller's state when scraped.
+     */
+    private static void registerMetrics() {
+        Metrics.gauge("dfs_dstores", "", "Connected dstores.", () -> dStoreListeners.size());
+        Metrics.gauge("dfs_index_files", "", "Files in the index.", Index::fileCount);
+        Metrics.gauges("dfs_dstore_files", "Files recorded on each dstore.", () -> {
+            Map<String, Long> fileCounts = new LinkedHashMap<String, Long>();
+            for (ClientDstoreListener dStoreListener : dStoreListeners) {
+                int port = dStoreListener.getClientPort();
+                fileCounts.put("dstore=\"" + port + "\"", (long) Index.dstoreFileCount(port));
+            }
+
+            return fileCounts;
+        });
+
+        RebalanceScheduler scheduler = RebalanceModule.getScheduler();
+        Metrics.counter("dfs_rebalance_triggers_total", "", "Rebalances requested.", scheduler::getTriggerCount);
+        Metrics.counter("dfs_rebalance_coalesced_total", "", "Rebalance requests merged into another.", scheduler::getCoalescedCount);
+        Metrics.counter("dfs_rebalance_runs_total", "", "Rebalances run.", scheduler::getRunCount);
+        Metrics.gauge("dfs_rebalancing", "", "1 while a rebalance is running.", () -> RebalanceModule.isRebalancing() ? 1 : 0);
+
+        Metrics.gauge("dfs_time_to_serving_milliseconds", "", "Time from starting to serving clients, -1 until serving.", 
+            RecoveryModule::getTimeToServing);
+        Metrics.gauge("dfs_queue_depth", "queue=\"index_log\"", "Items waiting in a queue.", Index::pendingLogRecords);
+    }
+
     /**
      * Sets up the connection listener.
      * @throws IOException
      */
     private static void listenForConnections() throws IOException {
+        if (ioMode.equals("nio")) listenForChannels();
+        else listenForSockets();
+    }
+
+    /**
+     * Accepts connections and starts a listener thread for each of them.
+     */
+    private static void listenForSockets() throws IOException {
         try (ServerSocket serverSocket = new ServerSocket(cPort)) {
             Message.info("setup server socket", 0);
 
@@ -119,17 +269,44 @@ public class Controller {
                     + newConnection.getInetAddress().getHostAddress() 
                     + ":" + newConnection.getPort(), 1);
 
-                new ClientDstoreListener(newConnection).start();
+                HandlerThreads.start(new ClientDstoreListener(newConnection));
             }
         }
     }
 
+    /**
+     * Serves every connection from a selector and a pool of worker threads.
+     */
+    private static void listenForChannels() throws IOException {
+        SelectorListener selectorListener = new SelectorListener(cPort, workerCount);
+        selectorListener.setName("sel");
+
+        Message.info("setup server channel with " + workerCount + " workers", 0);
+
+        selectorListener.start();
+    }
+
     /**
      * Returns true if atleast R dstores have joined.
      */
     public static boolean enoughDStores() { return dStoreListeners.size() >= replicationFactor; }
 
-    public static void addDStoreListener(ClientDstoreListener _dStoreListener) { dStoreListeners.add(_dStoreListener); }
+    public static void addDStoreListener(ClientDstoreListener _dStoreListener) { 
+        dStoreListenersByPort.put(_dStoreListener.getClientPort(), _dStoreListener);
+        dStoreListeners.add(_dStoreListener); 
+    }
+
+    /**
+     * Removes a dstore's listener, e.g. once its connection has closed.
+     * 
+     * Returns false if it had already been removed.
+     */
+    public static boolean removeDStoreListener(ClientDstoreListener _dStoreListener) {
+        // A dstore that rejoined on the same port keeps its new listener.
+        dStoreListenersByPort.remove(_dStoreListener.getClientPort(), _dStoreListener);
+
+        return dStoreListeners.remove(_dStoreListener);
+    }
 
     public static List<ClientDstoreListener> getDStoreListeners() {
         
@@ -139,16 +316,33 @@ public class Controller {
         return dStoreListeners; 
     }
 
+    /**
+     * Returns the listener of the connected dstore with the given port, or null if there isn't one.
+     */
+    public static ClientDstoreListener getDStoreListener(int _port) {
+        ClientDstoreListener dStoreListener = dStoreListenersByPort.get(_port);
+        if (dStoreListener == null || dStoreListener.isConnected()) return dStoreListener;
+
+        if (removeDStoreListener(dStoreListener)) RebalanceModule.dstoreLeft(_port);
+        return null;
+    }
+
     /**
      * Removes dstore listeners with failed connections.
      */
     private static void checkDStoreConnections() {
-        Predicate<ClientDstoreListener> notConnected = ds -> !ds.isConnected();
+        for (ClientDstoreListener dStoreListener : dStoreListeners) {
+            if (dStoreListener.isConnected()) continue;
 
-        dStoreListeners.removeIf(notConnected);
+            // Only the thread that removes the listener records the dstore as left.
+            if (removeDStoreListener(dStoreListener)) RebalanceModule.dstoreLeft(dStoreListener.getClientPort());
+        }
     }
 
     public static int getReplicationFactor() { return replicationFactor; }
+    public static PlacementPolicy getPlacementPolicy() { return placementPolicy; }
     public static int getTimeout() { return timeout; }
     public static int getRebalancePeriod() { return rebalancePeriod; }
+    public static int getRebalanceQuietWindow() { return rebalanceQuietWindow; }
+    public static int getRebalanceMinInterval() { return rebalanceMinInterval; }
 }
@@ -1,21 +1,41 @@
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Used by the dstore to send and receive messages to and from the controller.
  */
 public class ControllerListener extends Thread {
+
+    /**
+     * Longest wait (milliseconds) between attempts to reconnect to the controller.
+     */
+    private static final int MAX_RECONNECT_DELAY = 5000;
+
+    // Latency of rebalances, and of sending (see DClientListener) and removing files.
+    private static final LatencyHistogram REBALANCE_LATENCY = LatencyStats.get("rebalance");
+    private static final LatencyHistogram NETWORK_SEND_LATENCY = LatencyStats.get("network.send");
+    private static final LatencyHistogram DISK_REMOVE_LATENCY = LatencyStats.get("disk.remove");
+
+    // Metrics served on the admin port (see AdminServer).
+    private static final LongAdder BYTES_SENT = Metrics.counter("dfs_sent_bytes_total", "", "Bytes sent.");
+    private static final LongAdder REBALANCE_SENT_BYTES = Metrics.counter("dfs_rebalance_sent_bytes_total", "", 
+        "Bytes of files sent to other dstores by rebalances.");
+
     private InetAddress controllerAddress;
     private int controllerPort;
 
@@ -58,11 +78,19 @@ public class ControllerListener extends Thread {
             throw e;
         }
 
-        out.println("JOIN");
+        // Scan the files first, so the controller can use the dstore as soon as it has joined.
+        long scanStart = System.nanoTime();
+        DstoreInventory inventory = DstoreInventory.scan(Dstore.getFileFolder(), Dstore.usingChecksums());
+        Message.info("scanned " + inventory.size() + " files in " + (System.nanoTime() - scanStart) / 1000000 + "ms", 1);
+
+        out.println("JOIN INVENTORY");
         Message.info("sent JOIN message", 1);
 
         out.println(Dstore.getServerPort());
         Message.info("sent server port", 1);
+
+        out.println(inventory.toPacket());
+        Message.info("sent inventory", 1);
     }
 
     @Override
@@ -85,13 +113,10 @@ public class ControllerListener extends Thread {
 
                 Message.process("reconnecting to controller ...", 0);
 
-                try { 
-                    connect(); 
-
-                    Message.success("reconnected to controller", 0);
-                } catch (IOException e1) { 
+                if (reconnect()) Message.success("reconnected to controller", 0);
+                else {
                     Message.failed("failed to reconnect to controller", 0);
-                    
+
                     break;
                 }
             } catch (IOException e) {
@@ -101,6 +126,31 @@ public class ControllerListener extends Thread {
         }
     }
 
+    /**
+     * Keeps trying to connect to the controller, e.g. while it restarts, 
+     * waiting longer after each failed attempt.
+     * 
+     * Returns false if interrupted.
+     */
+    private boolean reconnect() {
+        int delay = 100;
+
+        while (true) {
+            try {
+                connect();
+                return true;
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e1) {
+                    return false;
+                }
+
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+            }
+        }
+    }
+
     /**
      * Checks if the client socket is connected and open.
      */
@@ -115,11 +165,11 @@ public class ControllerListener extends Thread {
     public void respondToController(String _packet) throws IOException {
         out.println(_packet);
 
-        Message.info("sent response: " + _packet, 1);
+        Message.info("sent response: ", _packet, 1);
     }
 
     private void processPacket(String _packet) throws PacketException, IOException, NullPacketException {
-        Message.process("processing packet from controller: " + _packet, 0);
+        Message.process("processing packet from controller: ", _packet, 0);
 
         if (_packet == null) throw new NullPacketException("controller");
 
@@ -136,6 +186,7 @@ public class ControllerListener extends Thread {
         }
 
         if (command.equals("LIST")) processList(arguments);
+        else if (command.equals("INVENTORY")) processInventory(arguments);
         else if (command.equals("REMOVE")) processRemove(arguments);
         else if (command.equals("REBALANCE")) processRebalance(arguments);
         else throw new PacketException("incorrect/missing command");
@@ -159,11 +210,27 @@ public class ControllerListener extends Thread {
 
         File[] files = Dstore.getFileFolder().listFiles();
         String fileNames = "";
-        for (File file : files) fileNames += " " + file.getName();
+        for (File file : files) 
+            if (file.isFile()) fileNames += " " + file.getName();
 
         respondToController("LIST" + fileNames);
     }
 
+    /**
+     * Processing inventory request from controller to dstore.
+     * 
+     * This happens when the controller rebuilds its index after joining.
+     */
+    private void processInventory(String[] _arguments) throws PacketException, IOException {
+        Message.info("INVENTORY request", 1);
+
+        if (_arguments.length != 0) {
+            throw new PacketException("INVENTORY command must have no arguments");
+        }
+
+        respondToController(DstoreInventory.scan(Dstore.getFileFolder(), Dstore.usingChecksums()).toPacket());
+    }
+
     private void processRemove(String[] _arguments) throws PacketException, IOException {
         Message.info("REMOVE request", 1);
 
@@ -174,8 +241,11 @@ public class ControllerListener extends Thread {
         String fileName = _arguments[0];
         File fileToRemove = new File(Dstore.getFileFolder(), fileName);
 
-        if (fileToRemove.exists()) fileToRemove.delete();
-        else {
+        if (fileToRemove.exists()) {
+            long startTime = System.nanoTime();
+            fileToRemove.delete();
+            DISK_REMOVE_LATENCY.recordSince(startTime);
+        } else {
             respondToController("ERROR_FILE_DOES_NOT_EXIST");
             return;
         }
@@ -189,6 +259,8 @@ public class ControllerListener extends Thread {
 
     /**
      * Processes a rebalance request.
+     * 
+     * Responds REBALANCE_FAILED, without removing any files, if a file couldn't be sent.
      */
     private void processRebalance(String[] _arguments) throws UnknownHostException, IOException, PacketException {
         Message.info("REBALANCE request", 1);
@@ -197,6 +269,9 @@ public class ControllerListener extends Thread {
             throw new PacketException("REBALANCE packet must have atleast 2 arguments");
         }
 
+        long startTime = System.nanoTime();
+        Set<Integer> failedDstores = new HashSet<Integer>();
+
         int currentArgument = 0;
 
         // Extract files that need to be sent.
@@ -212,10 +287,27 @@ public class ControllerListener extends Thread {
                 int dstorePort = Integer.valueOf(_arguments[currentArgument]);
                 currentArgument++;
 
-                sendFile(fileName, dstorePort);
+                // Dstores that failed to receive a file are skipped, the others are still sent their files.
+                if (failedDstores.contains(dstorePort)) continue;
+
+                try {
+                    sendFile(fileName, dstorePort);
+                } catch (IOException | PacketException e) {
+                    Message.error("failed to send " + fileName + " to " + dstorePort + ": " + e.getMessage(), 2);
+
+                    failedDstores.add(dstorePort);
+                }
             }
         }
 
+        // Files aren't removed unless every copy was made, so none are lost.
+        if (!failedDstores.isEmpty()) {
+            respondToController("REBALANCE_FAILED");
+            Message.failed("rebalance failed", 1);
+
+            return;
+        }
+
         // Extract files that need to be removed.
         int numberOfFilesToRemove = Integer.valueOf(_arguments[currentArgument]);
         currentArgument++;
@@ -227,49 +319,52 @@ public class ControllerListener extends Thread {
         }
 
         respondToController("REBALANCE_COMPLETE");
+        REBALANCE_LATENCY.recordSince(startTime);
     }
 
     /**
      * Sends a file to another dstore.
      * 
-     * Happens during rebalancing.
+     * Happens during rebalancing. The file's raw bytes are streamed 
+     * from disk to the socket, so any file content is sent unchanged.
      */
     private void sendFile(String _fileName, int _dstorePort) throws UnknownHostException, IOException, PacketException {
         Message.info("sending file to " + _dstorePort + ": " + _fileName, 1);
 
-        Socket socket = new Socket(InetAddress.getLocalHost(), _dstorePort);
-        // socket.setSoTimeout(DStore.getTimeout());
-
-        // Send REBALANCE_STORE packet to dstore.
-        PrintWriter printWriter = new PrintWriter(socket.getOutputStream(), true);
-        int fileSize = (int) Files.size(Paths.get(Dstore.getFileFolder().getAbsolutePath(), _fileName));
-        String outputPacket = "REBALANCE_STORE " + _fileName + " " + fileSize;
-        printWriter.println(outputPacket);
-
-        Message.info("sent packet: " + outputPacket, 2);
-
-        // Wait to receive ACK packet from dstore.
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        String inPacket = bufferedReader.readLine();
-        if (!inPacket.equals("ACK")) 
-            throw new PacketException("unexpected response from dstore");
-
-        Message.info("received acknowledgement", 2);
-
-        // Read contents of file.
         File file = new File(Dstore.getFileFolder(), _fileName);
-        BufferedReader fileReader = new BufferedReader(new FileReader(file));
-        String line = fileReader.readLine();
-        String fileContent = line;
-        while ((line = fileReader.readLine()) != null) fileContent += "\n" + line;
-        fileReader.close();
 
-        Message.info("read file contents", 2);
-
-        // Send file content to other dstore.
-        socket.getOutputStream().write(fileContent.getBytes());
-
-        Message.info("sent file contents", 2);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLocalHost(), _dstorePort));
+             FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Socket socket = channel.socket();
+            socket.setSoTimeout(Dstore.getTimeout());
+
+            // Send REBALANCE_STORE packet to dstore.
+            PrintWriter printWriter = new PrintWriter(socket.getOutputStream(), true);
+            long fileSize = fileChannel.size();
+            String outputPacket = "REBALANCE_STORE " + _fileName + " " + fileSize;
+            printWriter.println(outputPacket);
+
+            Message.info("sent packet: ", outputPacket, 2);
+
+            // Wait to receive ACK packet from dstore.
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String inPacket = bufferedReader.readLine();
+            if (!"ACK".equals(inPacket)) 
+                throw new PacketException("unexpected response from dstore");
+
+            Message.info("received acknowledgement", 2);
+
+            // Send file content to other dstore.
+            long sendStart = System.nanoTime();
+            long position = 0;
+            while (position < fileSize)
+                position += fileChannel.transferTo(position, fileSize - position, channel);
+            NETWORK_SEND_LATENCY.recordSince(sendStart);
+            BYTES_SENT.add(fileSize);
+            REBALANCE_SENT_BYTES.add(fileSize);
+
+            Message.info("sent file contents", 2);
+        }
     }
 
     /**
@@ -278,10 +373,12 @@ public class ControllerListener extends Thread {
      * Happens during rebalancing.
      */
     private void removeFile(String _fileName) {
-        Message.info("removing file: " + _fileName, 1);
+        Message.info("removing file: ", _fileName, 1);
 
         File file = new File(Dstore.getFileFolder(), _fileName);
+        long startTime = System.nanoTime();
         file.delete();
+        DISK_REMOVE_LATENCY.recordSince(startTime);
         
         Message.info("removed file", 2);
     }
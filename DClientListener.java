@@ -1,61 +1,86 @@
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Used by the dstore to listen to send and receive 
- * messages to and from the client and other dstores.
+ * Used by the dstore to send and receive messages to and from 
+ * a client or another dstore over one connection.
  */
-public class DClientListener extends Thread {
-    private static ServerSocket serverSocket;
+public class DClientListener implements Runnable {
 
-    private static Socket socket;
+    /**
+     * Size of the buffer used to receive file content.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
 
-    public DClientListener(int _port) throws IOException {
-        try {
-            serverSocket = new ServerSocket(_port);
-            Message.info("server socket opened on port " + _port, 1);
-        } catch (IOException e) {
-            Message.error("failed to open server socket on port " + _port, 1);
-            
-            throw e;
-        }
+    // Latency of each request, and of the time spent on the network and on disk for each file.
+    private static final LatencyHistogram STORE_LATENCY = LatencyStats.get("store");
+    private static final LatencyHistogram LOAD_DATA_LATENCY = LatencyStats.get("load_data");
+    private static final LatencyHistogram REBALANCE_STORE_LATENCY = LatencyStats.get("rebalance_store");
+    private static final LatencyHistogram NETWORK_RECEIVE_LATENCY = LatencyStats.get("network.receive");
+    private static final LatencyHistogram DISK_WRITE_LATENCY = LatencyStats.get("disk.write");
+
+    /**
+     * Files are sent with transferTo, so this includes reading them from disk.
+     */
+    private static final LatencyHistogram NETWORK_SEND_LATENCY = LatencyStats.get("network.send");
+
+    // Metrics served on the admin port (see AdminServer).
+    private static final AtomicLong STORES_IN_FLIGHT = Metrics.gauge("dfs_inflight_operations", "operation=\"store\"", 
+        "Operations being processed.");
+    private static final AtomicLong LOADS_IN_FLIGHT = Metrics.gauge("dfs_inflight_operations", "operation=\"load_data\"", 
+        "Operations being processed.");
+    private static final AtomicLong REBALANCE_STORES_IN_FLIGHT = Metrics.gauge("dfs_inflight_operations", 
+        "operation=\"rebalance_store\"", "Operations being processed.");
+    private static final LongAdder BYTES_RECEIVED = Metrics.counter("dfs_received_bytes_total", "", "Bytes received.");
+    private static final LongAdder BYTES_SENT = Metrics.counter("dfs_sent_bytes_total", "", "Bytes sent.");
+
+    private Socket socket;
+
+    public DClientListener(Socket _socket) {
+        socket = _socket;
     }
 
     @Override
     public void run() {
-        while (true) {
-            Message.info("waiting for connection ...", 0);
-
-            try {
-                socket = serverSocket.accept();
-                socket.setSoTimeout(Dstore.getTimeout());
-
-                Message.info("connection from: " + socket.getInetAddress(), 0);
+        try {
+            socket.setSoTimeout(Dstore.getTimeout());
 
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                String packet = in.readLine();
-                
-                processPacket(packet);
-            } catch (PacketException e) {
-                Message.error(e.getMessage(), 1);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String packet = in.readLine();
+            
+            processPacket(packet);
+        } catch (PacketException e) {
+            Message.error(e.getMessage(), 1);
 
-                Message.failed("failed to process packet", 0);
-            } catch (TimeoutException e) {
-                Message.error(e.getMessage(), 1);
+            Message.failed("failed to process packet", 0);
+        } catch (TimeoutException e) {
+            Message.error(e.getMessage(), 1);
 
-                Message.failed("timed out while processing packet", 0);
+            Message.failed("timed out while processing packet", 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
             } catch (IOException e) {
                 e.printStackTrace();
-            } 
+            }
         }
     }
 
@@ -66,20 +91,84 @@ public class DClientListener extends Thread {
         PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
         out.println(_packet);
 
-        Message.info("sent response: " + _packet, 1);
+        Message.info("sent response: ", _packet, 1);
     }
 
     /**
-     * Send raw byte data to connected node.
+     * Send the contents of a file to connected node.
+     * 
+     * The file is streamed straight from disk to the socket 
+     * (sendfile where supported), so it is never held on the heap.
      */
-    private void sentData(byte[] _data) throws IOException {
-        socket.getOutputStream().write(_data);
+    private void sentFile(FileChannel _file) throws IOException {
+        WritableByteChannel target = socket.getChannel();
+        if (target == null) target = Channels.newChannel(socket.getOutputStream());
+
+        long fileSize = _file.size();
+        long startTime = System.nanoTime();
+        long position = 0;
+        while (position < fileSize)
+            position += _file.transferTo(position, fileSize - position, target);
+        NETWORK_SEND_LATENCY.recordSince(startTime);
+        BYTES_SENT.add(fileSize);
+
+        Message.info("sent data: ", fileSize, " bytes", 1);
+    }
 
-        Message.info("sent data: " + _data, 1);
+    /**
+     * Receive file content from connected node.
+     * 
+     * The content is written to a temporary file in chunks, then moved into the 
+     * file folder, so a partially received file is never visible under its name.
+     * 
+     * The time spent waiting for the content and writing it to disk are recorded separately.
+     */
+    private void receiveFile(String _fileName, long _fileSize) throws IOException, TimeoutException {
+        long diskStart = System.nanoTime();
+        Path tempFile = Files.createTempFile(Dstore.getTempFolder().toPath(), "recv", ".part");
+        long diskTime = System.nanoTime() - diskStart;
+        long networkTime = 0;
+
+        try {
+            try (FileChannel fileChannel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                InputStream in = socket.getInputStream();
+                byte[] chunk = new byte[CHUNK_SIZE];
+
+                long remaining = _fileSize;
+                while (remaining > 0) {
+                    long readStart = System.nanoTime();
+                    int bytesRead = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                    long writeStart = System.nanoTime();
+                    networkTime += writeStart - readStart;
+
+                    if (bytesRead < 0) 
+                        throw new IOException("connection closed after " + (_fileSize - remaining) + " of " + _fileSize + " bytes");
+
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, bytesRead);
+                    while (buffer.hasRemaining()) fileChannel.write(buffer);
+                    diskTime += System.nanoTime() - writeStart;
+
+                    remaining -= bytesRead;
+                    BYTES_RECEIVED.add(bytesRead);
+                }
+            } catch (SocketTimeoutException e) {
+                throw new TimeoutException("timed out while reading file content");
+            }
+
+            long moveStart = System.nanoTime();
+            File file = new File(Dstore.getFileFolder(), _fileName);
+            Files.move(tempFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            diskTime += System.nanoTime() - moveStart;
+
+            NETWORK_RECEIVE_LATENCY.record(networkTime);
+            DISK_WRITE_LATENCY.record(diskTime);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
     }
 
     private void processPacket(String _packet) throws IOException, PacketException, TimeoutException {
-        Message.process("processing packet: " + _packet, 0);
+        Message.process("processing packet: ", _packet, 0);
 
         if (_packet == null) throw new PacketException("couldn't process null packet");
 
@@ -100,6 +189,7 @@ public class DClientListener extends Thread {
         if (command.equals("STORE")) processStore(arguments);
         else if (command.equals("LOAD_DATA")) processLoadData(arguments);
         else if (command.equals("REBALANCE_STORE")) processRebalanceStore(arguments);
+        else if (command.equals("STATS")) processStats(arguments);
         else throw new PacketException("incorrect/missing command");
 
         Message.success("packet processed correctly", 0);
@@ -115,13 +205,19 @@ public class DClientListener extends Thread {
     private void processStore(String[] _arguments) throws IOException, PacketException, TimeoutException {
         Message.info("STORE request", 1);
 
-        if (validateStore(_arguments)) {
-            String fileName = _arguments[0];
-            int fileSize = Integer.valueOf(_arguments[1]);
-
-            performStore(fileName, fileSize);
+        long startTime = System.nanoTime();
+        STORES_IN_FLIGHT.incrementAndGet();
+        try {
+            if (validateStore(_arguments)) {
+                String fileName = _arguments[0];
+                int fileSize = Integer.valueOf(_arguments[1]);
+
+                performStore(fileName, fileSize);
+            }
+        } finally {
+            STORES_IN_FLIGHT.decrementAndGet();
+            STORE_LATENCY.recordSince(startTime);
         }
-
     }
 
     private boolean validateStore(String[] _arguments) throws PacketException {
@@ -152,20 +248,7 @@ public class DClientListener extends Thread {
 
         Message.info("reading file content ...", 1);
         // Receive file contents from client.
-        byte[] fileBytes;
-        try {
-            fileBytes = socket.getInputStream().readNBytes(_fileSize);
-        } catch (SocketTimeoutException e) {
-            throw new TimeoutException("timed out while reading file content");
-        } catch (IOException e) {
-            throw e;
-        }
-
-        // Write file content to new file.
-        File file = new File(Dstore.getFileFolder(), _fileName);
-        FileOutputStream fileWriter = new FileOutputStream(file);
-        fileWriter.write(fileBytes);
-        fileWriter.close();
+        receiveFile(_fileName, _fileSize);
 
         Dstore.getControllerListener().respondToController("STORE_ACK " + _fileName);
     }
@@ -180,11 +263,18 @@ public class DClientListener extends Thread {
     private void processLoadData(String[] _arguments) throws IOException, PacketException {
         Message.info("LOAD_DATA request", 1);
 
-        if (validateLoadData(_arguments)) {
-            String fileName = _arguments[0];
-            File file = new File(Dstore.getFileFolder(), fileName);
-
-            performLoadData(file);
+        long startTime = System.nanoTime();
+        LOADS_IN_FLIGHT.incrementAndGet();
+        try {
+            if (validateLoadData(_arguments)) {
+                String fileName = _arguments[0];
+                File file = new File(Dstore.getFileFolder(), fileName);
+
+                performLoadData(file);
+            }
+        } finally {
+            LOADS_IN_FLIGHT.decrementAndGet();
+            LOAD_DATA_LATENCY.recordSince(startTime);
         }
     }
 
@@ -202,11 +292,9 @@ public class DClientListener extends Thread {
     }
 
     private void performLoadData(File _file) throws IOException {
-        FileInputStream fileReader = new FileInputStream(_file);
-        byte[] fileBytes = fileReader.readAllBytes();
-        fileReader.close();
-
-        sentData(fileBytes);
+        try (FileChannel fileChannel = FileChannel.open(_file.toPath(), StandardOpenOption.READ)) {
+            sentFile(fileChannel);
+        }
     }
 
 
@@ -216,14 +304,21 @@ public class DClientListener extends Thread {
     /**
      * Processes REBALANCE_STORE packet sent by another dstore.
      */
-    private void processRebalanceStore(String[] _arguments) throws PacketException, IOException {
+    private void processRebalanceStore(String[] _arguments) throws PacketException, IOException, TimeoutException {
         Message.info("REBALANCE_STORE request", 1);
 
-        if (validateRebalanceStore(_arguments)) {
-            String fileName = _arguments[0];
-            int fileSize = Integer.valueOf(_arguments[1]);
-
-            performRebalanceStore(fileName, fileSize);
+        long startTime = System.nanoTime();
+        REBALANCE_STORES_IN_FLIGHT.incrementAndGet();
+        try {
+            if (validateRebalanceStore(_arguments)) {
+                String fileName = _arguments[0];
+                long fileSize = Long.valueOf(_arguments[1]);
+
+                performRebalanceStore(fileName, fileSize);
+            }
+        } finally {
+            REBALANCE_STORES_IN_FLIGHT.decrementAndGet();
+            REBALANCE_STORE_LATENCY.recordSince(startTime);
         }
     }
 
@@ -232,9 +327,9 @@ public class DClientListener extends Thread {
             throw new PacketException("REBALANCE_STORE command must have 2 arguments");
         }
 
-        int fileSize;
+        long fileSize;
         try { 
-            fileSize = Integer.valueOf(_arguments[1]); 
+            fileSize = Long.valueOf(_arguments[1]); 
         } catch (NumberFormatException e) { 
             throw new PacketException("file size must be an integer");
         }
@@ -244,25 +339,30 @@ public class DClientListener extends Thread {
         return true;
     }
 
-    private void performRebalanceStore(String _fileName, int _fileSize) throws IOException {
+    private void performRebalanceStore(String _fileName, long _fileSize) throws IOException, TimeoutException {
 
         // Send acknowledgement to other dstore.
         respond("ACK");
 
         Message.info("sending acknowledgement", 1);
 
-        // Receive file content from the other dstore.
-        byte[] fileBytes = socket.getInputStream().readNBytes(_fileSize);
-        String fileContent = new String(fileBytes);
+        // Receive exactly _fileSize bytes from the other dstore and move them into the file folder.
+        receiveFile(_fileName, _fileSize);
+
+        Message.info("wrote file data to new file: ", _fileName, 1);
+    }
+
+
 
-        Message.info("received file data: " + _fileName, 1);
+    //// STATS ////
 
-        // Create a file and write the file content to it.
-        File file = new File(Dstore.getFileFolder(), _fileName);
-        FileWriter fileWriter = new FileWriter(file);
-        fileWriter.write(fileContent);
-        fileWriter.close();
+    /**
+     * Processes STATS packet, which responds with the latency 
+     * histograms (see LatencyStats.toPackets), in microseconds.
+     */
+    private void processStats(String[] _arguments) throws IOException, PacketException {
+        if (_arguments.length != 0) throw new PacketException("STATS command must have no arguments");
 
-        Message.info("wrote file data to new file: " + _fileName, 1);
+        for (String packet : LatencyStats.toPackets()) respond(packet);
     }
 }
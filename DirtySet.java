@@ -0,0 +1,94 @@
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tracks what has changed since the last successful rebalance: 
+ * dstores that joined or left, and the files and dstores 
+ * involved in stores and removes that didn't finish.
+ */
+public class DirtySet {
+    private final Set<Integer> joinedPorts;
+    private final Set<Integer> leftPorts;
+    private final Set<Integer> dstorePorts;
+    private final Set<String> files;
+
+    public DirtySet() {
+        joinedPorts = new HashSet<Integer>();
+        leftPorts = new HashSet<Integer>();
+        dstorePorts = new HashSet<Integer>();
+        files = new HashSet<String>();
+    }
+
+    /**
+     * Records a dstore that joined.
+     * 
+     * @param _needsListing true if the index doesn't know the dstore's files, so it has to list them.
+     */
+    public synchronized void dstoreJoined(int _port, boolean _needsListing) { 
+        joinedPorts.add(_port); 
+        if (_needsListing) dstorePorts.add(_port);
+    }
+
+    public synchronized void dstoreLeft(int _port) { leftPorts.add(_port); }
+
+    /**
+     * Records a file whose store or remove didn't finish, 
+     * and the dstores that may still hold a copy of it.
+     */
+    public synchronized void fileChanged(String _file, Iterable<Integer> _ports) {
+        files.add(_file);
+        for (Integer port : _ports) dstorePorts.add(port);
+    }
+
+    /**
+     * Records a dstore whose files need to be listed again.
+     */
+    public synchronized void dstoreChanged(int _port) { dstorePorts.add(_port); }
+
+    public synchronized boolean isEmpty() {
+        return joinedPorts.isEmpty() && leftPorts.isEmpty() && dstorePorts.isEmpty() && files.isEmpty();
+    }
+
+    /**
+     * Moves every change into a new set, leaving this one empty.
+     */
+    public synchronized DirtySet drain() {
+        DirtySet drained = new DirtySet();
+        drained.addAll(this);
+
+        joinedPorts.clear();
+        leftPorts.clear();
+        dstorePorts.clear();
+        files.clear();
+
+        return drained;
+    }
+
+    /**
+     * Adds the changes from another set, e.g. after a rebalance using them failed.
+     */
+    public synchronized void addAll(DirtySet _other) {
+        synchronized (_other) {
+            joinedPorts.addAll(_other.joinedPorts);
+            leftPorts.addAll(_other.leftPorts);
+            dstorePorts.addAll(_other.dstorePorts);
+            files.addAll(_other.files);
+        }
+    }
+
+    /**
+     * Returns the ports of the dstores whose files need to be listed: the ones 
+     * that joined without an inventory and the ones involved in unfinished operations.
+     */
+    public synchronized Set<Integer> getListPorts() { return new HashSet<Integer>(dstorePorts); }
+
+    public synchronized Set<Integer> getLeftPorts() { return new HashSet<Integer>(leftPorts); }
+
+    public synchronized Set<String> getFiles() { return new HashSet<String>(files); }
+
+    @Override
+    public synchronized String toString() {
+        return joinedPorts.size() + " joined, " + leftPorts.size() + " left, " 
+            + dstorePorts.size() + " dstores and " + files.size() + " files changed";
+    }
+}
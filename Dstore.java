@@ -1,20 +1,58 @@
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Dstore {
     private static ControllerListener controllerListener;
-    private static DClientListener dClientListener;
+
+    /**
+     * Accepted sockets are backed by channels, so files can be sent with FileChannel.transferTo.
+     */
+    private static ServerSocketChannel serverChannel;
+    private static ExecutorService clientListeners;
+
+    /**
+     * Limits the number of client and dstore connections being served at once.
+     */
+    private static Semaphore connectionLimit;
+
+    private static final AtomicLong CONNECTIONS = Metrics.gauge("dfs_connections", "", "Open connections.");
 
     private static int port;
     private static int cport;
     private static int timeout;
     private static File fileFolder;
 
+    /**
+     * Holds files that are still being received.
+     */
+    private static File tempFolder;
+
+    private static int workerCount;
+    private static int maxConnections;
+
+    /**
+     * Whether the inventory sent to the controller includes a checksum of each file.
+     */
+    private static boolean checksums;
+
+    /**
+     * Port metrics are served on over HTTP, or -1 if they aren't.
+     */
+    private static int adminPort;
+
     public static void main(String[] args) {
         if (!setupDStore(args)) return;
         if (!setupClientListener()) return;
+        if (!setupAdminServer()) return;
         connectToController();
+        listenForConnections();
     }
 
     /**
@@ -87,6 +125,10 @@ public class Dstore {
             if (!fileFolder.exists()) {
                 Message.error("file folder doesn't exist", 1);
 
+                setupCorrectly = false;
+            } else if (!setupTempFolder()) {
+                Message.error("failed to create temporary folder", 1);
+
                 setupCorrectly = false;
             }
 
@@ -96,12 +138,65 @@ public class Dstore {
             setupCorrectly = false;
         }
 
+        try {
+            Options options = new Options(_args, 4);
+
+            Message.setup(options);
+
+            String ioMode = options.get("io", "thread");
+            if (ioMode.equals("virtual")) HandlerThreads.enableVirtualThreads();
+            else if (!ioMode.equals("thread")) {
+                Message.error("invalid io mode (must be thread or virtual)", 1);
+
+                setupCorrectly = false;
+            }
+
+            workerCount = options.getInt("workers", 2 * Runtime.getRuntime().availableProcessors());
+            if (!(workerCount > 0)) {
+                Message.error("invalid worker count (must be >0)", 1);
+
+                setupCorrectly = false;
+            }
+
+            checksums = Boolean.parseBoolean(options.get("checksums", "false"));
+
+            maxConnections = options.getInt("maxconnections", 
+                HandlerThreads.usingVirtualThreads() ? 1024 : workerCount);
+            if (!(maxConnections > 0)) {
+                Message.error("invalid max connections (must be >0)", 1);
+
+                setupCorrectly = false;
+            }
+
+            adminPort = options.getInt("admin", -1);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            Message.error(e.getMessage(), 1);
+
+            setupCorrectly = false;
+        }
+
         if (setupCorrectly) Message.success("dstore setup complete", 0);
         else Message.failed("dstore setup failed", 0);
 
         return setupCorrectly;
     }
 
+    /**
+     * Creates the temporary folder inside the file folder, and removes 
+     * any partially received files left over from a previous run.
+     * 
+     * Returns true if the folder is ready to use.
+     */
+    private static boolean setupTempFolder() {
+        tempFolder = new File(fileFolder, ".tmp");
+
+        if (!tempFolder.exists()) return tempFolder.mkdir();
+
+        for (File file : tempFolder.listFiles()) file.delete();
+
+        return true;
+    }
+
     /**
      * Setup a listener to send and receive messages to and from the controller.
      * 
@@ -117,14 +212,14 @@ public class Dstore {
 
             Message.success("controller listener setup", 0);
 
-            controllerListener.start();
+            HandlerThreads.start(controllerListener);
         } catch (IOException e) {
             Message.failed("failed to setup controller listener", 0);
         }
     }
 
     /**
-     * Setup a listener to send and receive messages to and from the client.
+     * Setup the server socket that clients and other dstores connect to.
      * 
      * Return true if the setup was successful.
      */
@@ -132,14 +227,40 @@ public class Dstore {
         Message.process("setting up client listener", 0);
 
         try {
-            dClientListener = new DClientListener(port);
-            dClientListener.setName("clnt");
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            Message.info("server socket opened on port " + port, 1);
+        } catch (IOException e) {
+            Message.error("failed to open server socket on port " + port, 1);
 
-            Message.success("client listener setup", 0);
+            Message.failed("failed to setup client listener", 0);
+
+            return false;
+        }
+
+        clientListeners = HandlerThreads.newPool(workerCount, "clnt");
+        connectionLimit = new Semaphore(maxConnections);
 
-            dClientListener.start();
+        Message.success("client listener setup", 0);
+
+        return true;
+    }
+
+    /**
+     * Registers the metrics read from the dstore's state, and serves them if an admin port was given.
+     * 
+     * Return true if the setup was successful.
+     */
+    private static boolean setupAdminServer() {
+        Metrics.gauge("dfs_queue_depth", "queue=\"workers\"", "Items waiting in a queue.", 
+            () -> HandlerThreads.queueDepth(clientListeners));
+
+        if (adminPort == -1) return true;
+
+        try {
+            AdminServer.start(adminPort);
         } catch (IOException e) {
-            Message.failed("failed to setup client listener", 0);
+            Message.failed("failed to serve metrics on port " + adminPort + ": " + e.getMessage(), 0);
 
             return false;
         }
@@ -147,10 +268,47 @@ public class Dstore {
         return true;
     }
 
+    /**
+     * Accepts connections and hands each of them to its own listener.
+     * 
+     * Stops accepting while the connection limit is reached, so 
+     * new connections wait in the server socket's backlog.
+     */
+    private static void listenForConnections() {
+        while (true) {
+            try {
+                connectionLimit.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                Socket socket = serverChannel.accept().socket();
+
+                Message.info("connection from: ", socket.getInetAddress(), 0);
+
+                clientListeners.execute(() -> {
+                    CONNECTIONS.incrementAndGet();
+                    try {
+                        new DClientListener(socket).run();
+                    } finally {
+                        CONNECTIONS.decrementAndGet();
+                        connectionLimit.release();
+                    }
+                });
+            } catch (IOException e) {
+                connectionLimit.release();
+
+                e.printStackTrace();
+            }
+        }
+    }
+
     public static int getServerPort() { return port; }
     public static int getTimeout() { return timeout; }
+    public static boolean usingChecksums() { return checksums; }
     public static File getFileFolder() { return fileFolder; }
+    public static File getTempFolder() { return tempFolder; }
 
-    public static DClientListener getDClientListener() { return dClientListener; }
     public static ControllerListener getControllerListener() { return controllerListener; }
 }
@@ -0,0 +1,47 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks acknowledgements expected from a set of dstores.
+ * 
+ * Each dstore is counted once, and acknowledgements from dstores 
+ * that weren't asked are ignored, so one dstore's late or repeated 
+ * acknowledgement can't complete the wait for another dstore.
+ */
+public class DstoreAcks {
+    private final Set<Integer> pendingPorts;
+    private final AckLatch latch;
+
+    public DstoreAcks(Iterable<Integer> _ports) {
+        pendingPorts = ConcurrentHashMap.newKeySet();
+        for (Integer port : _ports) pendingPorts.add(port);
+
+        latch = new AckLatch(pendingPorts.size());
+    }
+
+    /**
+     * Records the acknowledgement from a dstore.
+     */
+    public void ack(int _port) {
+        if (pendingPorts.remove(_port)) latch.ack();
+    }
+
+    /**
+     * Returns true if the dstore was asked and hasn't acknowledged yet.
+     */
+    public boolean isPending(int _port) { return pendingPorts.contains(_port); }
+
+    /**
+     * Returns the ports of the dstores that haven't acknowledged yet.
+     */
+    public Set<Integer> getPendingPorts() { return pendingPorts; }
+
+    /**
+     * Waits for every dstore to acknowledge.
+     * 
+     * After a certain amount of time waiting, a timeout exception will be thrown.
+     */
+    public void await(int _timeout) throws TimeoutException {
+        latch.await(_timeout);
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+
+/**
+ * The files a dstore holds on disk, with their sizes and optionally their checksums.
+ *
+ * Sent to the controller with JOIN, so it knows what the dstore holds
+ * without asking it to LIST its files.
+ */
+public class DstoreInventory {
+
+    /**
+     * A file held by the dstore.
+     */
+    public static class Entry {
+        public final String name;
+        public final long size;
+
+        /**
+         * CRC32C of the file's contents, or -1 if it wasn't calculated.
+         */
+        public final long checksum;
+
+        public Entry(String _name, long _size, long _checksum) {
+            name = _name;
+            size = _size;
+            checksum = _checksum;
+        }
+    }
+
+    private final Entry[] entries;
+
+    private DstoreInventory(Entry[] _entries) {
+        entries = _entries;
+    }
+
+    /**
+     * Scans the regular files in a folder, looking at the files in parallel.
+     *
+     * Hidden folders such as the temporary folder are skipped, as only regular files are included.
+     */
+    public static DstoreInventory scan(File _folder, boolean _checksums) throws IOException {
+        String[] names = _folder.list();
+        if (names == null) throw new IOException("failed to list " + _folder);
+
+        Entry[] entries = Arrays.stream(names).parallel()
+            .map(name -> scanFile(new File(_folder, name), _checksums))
+            .filter(Objects::nonNull)
+            .toArray(Entry[]::new);
+
+        return new DstoreInventory(entries);
+    }
+
+    /**
+     * Returns the file's entry, or null if it isn't a regular file (or was removed while scanning).
+     */
+    private static Entry scanFile(File _file, boolean _checksum) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(_file.toPath(), BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) return null;
+
+            return new Entry(_file.getName(), attributes.size(), _checksum ? checksum(_file) : -1);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the CRC32C of the file's contents.
+     */
+    public static long checksum(File _file) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        try (FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return crc.getValue();
+    }
+
+    public int size() { return entries.length; }
+
+    /**
+     * Returns the INVENTORY packet: each file's name followed by
+     * its size, or by "size/checksum" if the checksum is known.
+     */
+    public String toPacket() {
+        StringBuilder packet = new StringBuilder(16 + entries.length * 24);
+        packet.append("INVENTORY");
+
+        for (Entry entry : entries) {
+            packet.append(' ').append(entry.name).append(' ').append(entry.size);
+            if (entry.checksum >= 0) packet.append('/').append(Long.toHexString(entry.checksum));
+        }
+
+        return packet.toString();
+    }
+}
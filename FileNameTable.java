@@ -0,0 +1,76 @@
+import java.util.Arrays;
+
+/**
+ * Interns file names to consecutive int IDs.
+ * 
+ * Open addressing table of names and int IDs, so no boxed 
+ * integers or map entries are created per file.
+ */
+public class FileNameTable {
+    private String[] keys;
+    private int[] ids;
+
+    private String[] names;
+    private int size;
+
+    public FileNameTable() {
+        keys = new String[1024];
+        ids = new int[1024];
+        names = new String[512];
+        size = 0;
+    }
+
+    /**
+     * Returns the ID of a file name, giving it the next ID if it hasn't been seen before.
+     */
+    public int intern(String _name) {
+        int mask = keys.length - 1;
+        int slot = hash(_name) & mask;
+
+        while (keys[slot] != null) {
+            if (keys[slot].equals(_name)) return ids[slot];
+            slot = (slot + 1) & mask;
+        }
+
+        int id = size;
+        keys[slot] = _name;
+        ids[slot] = id;
+
+        if (size == names.length) names = Arrays.copyOf(names, size * 2);
+        names[size] = _name;
+        size++;
+
+        // Keep the table at most half full.
+        if (size * 2 > keys.length) resize();
+
+        return id;
+    }
+
+    public String getName(int _id) { return names[_id]; }
+
+    public int size() { return size; }
+
+    private void resize() {
+        String[] oldKeys = keys;
+        int[] oldIds = ids;
+
+        keys = new String[oldKeys.length * 2];
+        ids = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+
+            keys[slot] = oldKeys[i];
+            ids[slot] = oldIds[i];
+        }
+    }
+
+    private static int hash(String _name) {
+        int h = _name.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
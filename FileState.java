@@ -0,0 +1,12 @@
+/**
+ * Stage of a file's life in the controller's index.
+ * 
+ * A file that isn't in the index is absent.
+ */
+public enum FileState {
+    STORING,
+    STORED,
+    // Stored, and being moved between dstores by a rebalance.
+    MOVING,
+    REMOVING
+}
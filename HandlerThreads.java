@@ -0,0 +1,64 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs connection handlers on platform threads, or on virtual threads if they are enabled.
+ * 
+ * Virtual threads park when they block on a socket, so a handler waiting 
+ * for a packet doesn't hold on to a platform thread.
+ */
+public class HandlerThreads {
+
+    private static ExecutorService virtualExecutor;
+
+    /**
+     * Enables virtual threads for every handler started after this call.
+     * 
+     * @throws UnsupportedOperationException if the JVM doesn't support virtual threads.
+     */
+    public static void enableVirtualThreads() throws UnsupportedOperationException {
+        // Looked up at runtime so the code still compiles and runs on JVMs without virtual threads.
+        try {
+            Method newExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            virtualExecutor = (ExecutorService) newExecutor.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or newer");
+        }
+    }
+
+    public static boolean usingVirtualThreads() { return virtualExecutor != null; }
+
+    /**
+     * Returns an executor for handlers.
+     * 
+     * This runs each handler on its own virtual thread if they are enabled, 
+     * otherwise on a fixed pool of platform threads.
+     */
+    public static ExecutorService newPool(int _threadCount, String _name) {
+        if (virtualExecutor != null) return virtualExecutor;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(_threadCount, 
+            runnable -> new Thread(runnable, _name + threadNumber.incrementAndGet()));
+    }
+
+    /**
+     * Returns the number of handlers waiting for a thread of the pool (0 for virtual threads).
+     */
+    public static int queueDepth(ExecutorService _pool) {
+        if (_pool instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) _pool).getQueue().size();
+
+        return 0;
+    }
+
+    /**
+     * Starts running a handler.
+     */
+    public static void start(Thread _handler) {
+        if (virtualExecutor != null) virtualExecutor.execute(_handler);
+        else _handler.start();
+    }
+}
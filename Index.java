@@ -1,30 +1,164 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.function.Predicate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Controller's index of files.
+ * 
+ * Backed by a ConcurrentHashMap, so lookups don't block and updates 
+ * only lock the part of the map that holds the file. Each change is 
+ * logged inside the same compute as the map update, so the log records 
+ * a file's changes in the order they were made.
+ */
 public class Index {
 
-    private static HashMap<String, IndexProperties> files;
+    private static ConcurrentHashMap<String, IndexProperties> files;
+
+    /**
+     * Number of file replicas held by each dstore (port).
+     */
+    private static ConcurrentHashMap<Integer, AtomicInteger> dstoreFileCounts;
+
+    /**
+     * Number of changes to files' states and replicas, so a rebalance can tell which files changed while it was planned.
+     */
+    private static AtomicLong changeCount;
+
+    /**
+     * Logs every change to the index, or null if the index isn't persisted.
+     */
+    private static IndexLog log;
+
+    /**
+     * Files whose store or remove was cut short by the controller stopping, and their replicas.
+     */
+    private static HashMap<String, int[]> unfinishedFiles;
 
     public static void setup() {
-        files = new HashMap<String, IndexProperties>();
+        files = new ConcurrentHashMap<String, IndexProperties>();
+        dstoreFileCounts = new ConcurrentHashMap<Integer, AtomicInteger>();
+        changeCount = new AtomicLong();
+
+        log = null;
+        unfinishedFiles = new HashMap<String, int[]>();
     }
 
-    public static void clear() {
-        files.clear();
+    /**
+     * Sets up an index that is persisted in a folder, recovering the files recorded there.
+     * 
+     * Files that were still being stored are dropped, and files that were being 
+     * removed stay in the removing state. Both are returned by getUnfinishedFiles.
+     * @param _snapshotInterval number of changes logged between snapshots.
+     * @throws IOException
+     */
+    public static void setup(File _folder, long _snapshotInterval) throws IOException {
+        setup();
+
+        log = new IndexLog(_folder, _snapshotInterval);
+        files = log.recover();
+
+        files.forEach((fileName, properties) -> {
+            if (properties.getState() != FileState.STORED) unfinishedFiles.put(fileName, properties.getReplicas());
+        });
+
+        for (Map.Entry<String, int[]> unfinishedFile : unfinishedFiles.entrySet()) {
+            if (getState(unfinishedFile.getKey()) != FileState.STORING) continue;
+
+            files.remove(unfinishedFile.getKey());
+            log.logRemove(unfinishedFile.getKey());
+        }
+
+        files.forEach((fileName, properties) -> {
+            for (int replica : properties.getReplicas()) changeFileCount(replica, 1);
+        });
     }
 
+    public static HashMap<String, int[]> getUnfinishedFiles() { return unfinishedFiles; }
+
+    /**
+     * Returns true if the index is persisted, so it knows which files exist after a restart.
+     */
+    public static boolean isPersistent() { return log != null; }
+
+    /**
+     * Returns the number of changes that haven't been persisted yet (0 if the index isn't persisted).
+     */
+    public static long pendingLogRecords() { return log == null ? 0 : log.getPendingCount(); }
+
+    public static int fileCount() { return files.size(); }
+
     /**
-     * Add file to file index.
+     * Returns the files map, for writing snapshots.
+     */
+    public static Map<String, IndexProperties> getFiles() { return files; }
+
+    /**
+     * Returns the number of changes to files so far, to pass to changedSince.
+     */
+    public static long getChangeCount() { return changeCount.get(); }
+
+    /**
+     * Returns true if the file's state or replicas changed after the given change count, or it is absent.
+     */
+    public static boolean changedSince(String _fileName, long _changeCount) {
+        IndexProperties properties = files.get(_fileName);
+
+        return properties == null || properties.lastChange > _changeCount;
+    }
+
+    private static void recordChange(IndexProperties _properties) {
+        _properties.lastChange = changeCount.incrementAndGet();
+    }
+
+    /**
+     * Waits until every change so far has been persisted.
+     * @throws IOException if the changes couldn't be written.
+     */
+    public static void sync() throws IOException {
+        if (log != null) log.sync();
+    }
+
+    /**
+     * Add file to file index in the "storing" state.
+     * 
+     * Returns false if the file is already in the index.
      * @throws IndexException
      */
-    public static void addFile(String _fileName, int _fileSize) throws IndexException {
+    public static boolean addFile(String _fileName, int _fileSize) throws IndexException {
         if (_fileSize < 0) throw new IndexException("file size must be positive");
+        if (_fileName.getBytes(StandardCharsets.UTF_8).length > IndexLog.MAX_NAME_BYTES) throw new IndexException("file name is too long");
+
+        IndexProperties properties = new IndexProperties(_fileSize);
+
+        IndexProperties current = files.computeIfAbsent(_fileName, fileName -> {
+            recordChange(properties);
+            if (log != null) log.logAdd(fileName, _fileSize);
 
-        files.put(_fileName, new IndexProperties(_fileSize));
+            return properties;
+        });
+
+        return current == properties;
     }
 
     public static void removeFile(String _fileName) {
-        files.remove(_fileName);
+        IndexProperties[] removed = new IndexProperties[1];
+
+        files.computeIfPresent(_fileName, (fileName, properties) -> {
+            if (log != null) log.logRemove(fileName);
+
+            removed[0] = properties;
+            return null;
+        });
+        if (removed[0] == null) return;
+
+        for (int replica : removed[0].setReplicas(new int[0])) changeFileCount(replica, -1);
     }
 
     /**
@@ -32,48 +166,270 @@ public class Index {
      * are not in "process of store" or "process of remove".
      */
     public static String[] listFiles() { 
-        Predicate<String> condition = file -> !files.get(file).removeInProcess.isSet()
-                                           && !files.get(file).storeInProcess.isSet();
-        String[] availableFiles = files.keySet().stream().filter(condition).toArray(String[]::new);
-
-        return availableFiles;
+        return files.entrySet().stream()
+            .filter(file -> file.getValue().getState() == FileState.STORED || file.getValue().getState() == FileState.MOVING)
+            .map(file -> file.getKey())
+            .toArray(String[]::new);
     }
 
     /**
      * Return true if a filename exists in the file index.
      */
     public static boolean fileExists(String _fileName) { 
-        return files.keySet().stream().anyMatch(s -> s.equals(_fileName)); 
+        return files.containsKey(_fileName); 
+    }
+
+    /**
+     * Returns the size of the file, or -1 if the file is absent.
+     */
+    public static int fileSize(String _fileName) { 
+        IndexProperties properties = files.get(_fileName);
+
+        return properties == null ? -1 : properties.fileSize;
+    }
+
+    /**
+     * Returns the state of the file, or null if the file is absent.
+     */
+    public static FileState getState(String _fileName) {
+        IndexProperties properties = files.get(_fileName);
+
+        return properties == null ? null : properties.getState();
+    }
+
+    /**
+     * Moves the file from one state to another, and logs the change.
+     * 
+     * Returns false if the file is absent or isn't in the expected state.
+     */
+    private static boolean changeState(String _fileName, FileState _from, FileState _to) {
+        boolean[] changed = new boolean[1];
+
+        files.computeIfPresent(_fileName, (fileName, properties) -> {
+            if (!properties.changeState(_from, _to)) return properties;
+
+            recordChange(properties);
+            if (log != null) log.logState(fileName, _to);
+
+            changed[0] = true;
+            return properties;
+        });
+
+        return changed[0];
+    }
+
+
+
+    //// REPLICAS ////
+
+    /**
+     * Returns the ports of the dstores holding the file, or an empty array if the file is absent.
+     */
+    public static int[] getReplicas(String _fileName) {
+        IndexProperties properties = files.get(_fileName);
+
+        return properties == null ? new int[0] : properties.getReplicas();
+    }
+
+    /**
+     * Returns the ports of the dstores to load the file from.
+     * 
+     * While the file is moving, only the dstores that keep it throughout 
+     * the move are returned, unless every copy of it is moving.
+     */
+    public static int[] getLoadReplicas(String _fileName) {
+        IndexProperties properties = files.get(_fileName);
+        if (properties == null) return new int[0];
+
+        int[] movingReplicas = properties.movingReplicas;
+        if (properties.getState() == FileState.MOVING && movingReplicas != null && movingReplicas.length > 0) 
+            return movingReplicas;
+
+        return properties.getReplicas();
+    }
+
+    /**
+     * Records a dstore as holding a copy of the file.
+     */
+    public static void addReplica(String _fileName, int _port) {
+        boolean[] added = new boolean[1];
+
+        files.computeIfPresent(_fileName, (fileName, properties) -> {
+            if (!properties.addReplica(_port)) return properties;
+
+            recordChange(properties);
+            if (log != null) log.logReplicas(fileName, properties.getReplicas());
+
+            added[0] = true;
+            return properties;
+        });
+
+        if (added[0]) changeFileCount(_port, 1);
     }
 
-    public static int fileSize(String _fileName) { return files.get(_fileName).fileSize; }
+    /**
+     * Replaces the dstores recorded as holding the file, e.g. after rebalancing.
+     */
+    public static void setReplicas(String _fileName, int[] _ports) {
+        int[][] oldReplicas = new int[1][];
+
+        files.computeIfPresent(_fileName, (fileName, properties) -> {
+            oldReplicas[0] = properties.setReplicas(_ports);
+
+            recordChange(properties);
+            if (log != null) log.logReplicas(fileName, _ports);
+
+            return properties;
+        });
+        if (oldReplicas[0] == null) return;
+
+        for (int replica : oldReplicas[0]) changeFileCount(replica, -1);
+        for (int replica : _ports) changeFileCount(replica, 1);
+    }
+
+    /**
+     * Checks a dstore's copy of the file against the checksum the first copy reported.
+     * 
+     * Returns false if the checksums differ. The first checksum reported is recorded and matches.
+     */
+    public static boolean matchChecksum(String _fileName, long _checksum) {
+        IndexProperties properties = files.get(_fileName);
+        if (properties == null) return true;
+
+        synchronized (properties) {
+            if (properties.checksum < 0) properties.checksum = _checksum;
+
+            return properties.checksum == _checksum;
+        }
+    }
+
+    /**
+     * Returns the stored files recorded on each dstore (port), 
+     * leaving out files that are being stored or removed.
+     */
+    public static HashMap<Integer, List<String>> listStoredReplicas() {
+        HashMap<Integer, List<String>> storedReplicas = new HashMap<Integer, List<String>>();
+
+        files.forEach((fileName, properties) -> {
+            if (properties.getState() != FileState.STORED) return;
+
+            for (int replica : properties.getReplicas())
+                storedReplicas.computeIfAbsent(replica, port -> new ArrayList<String>()).add(fileName);
+        });
+
+        return storedReplicas;
+    }
+
+    /**
+     * Returns the number of file replicas recorded for a dstore.
+     */
+    public static int dstoreFileCount(int _port) {
+        AtomicInteger count = dstoreFileCounts.get(_port);
+
+        return count == null ? 0 : count.get();
+    }
+
+    private static void changeFileCount(int _port, int _change) {
+        dstoreFileCounts.computeIfAbsent(_port, port -> new AtomicInteger()).addAndGet(_change);
+    }
 
 
 
     //// STORING ////
 
     public static boolean isFileBeingStored(String _fileName) { 
-        return files.get(_fileName).storeInProcess.isSet(); 
+        return getState(_fileName) == FileState.STORING; 
+    }
+
+    /**
+     * Marks the file as stored once every STORE acknowledgement has been received.
+     */
+    public static boolean storeComplete(String _fileName) { 
+        return changeState(_fileName, FileState.STORING, FileState.STORED);
     }
 
     /**
-     * Set whether or not the controller is in the process of storing the file.
+     * Start waiting for STORE acknowledgements from the dstores chosen to store the file.
+     * 
+     * Returns the acknowledgements being waited for.
+     * @throws IndexException if the file is absent, e.g. its store has already been cleaned up.
      */
-    public static void storingFile(String _fileName, boolean _storeInProcess) { 
-        if (_storeInProcess) files.get(_fileName).storeInProcess.set();
-        else files.get(_fileName).storeInProcess.reset();
+    public static DstoreAcks resetStoreAcks(String _fileName, Iterable<Integer> _ports) throws IndexException {
+        IndexProperties properties = files.get(_fileName);
+        if (properties == null) throw new IndexException(_fileName + " is no longer in the index");
+
+        DstoreAcks storeAcks = new DstoreAcks(_ports);
+        properties.storeAcks = storeAcks;
+
+        return storeAcks;
     }
 
-    public static void resetStoreAcks(String _fileName) {
-        files.get(_fileName).storeAcks.reset();
+    /**
+     * Records a STORE acknowledgement from a dstore, and the dstore as holding the file.
+     * 
+     * Acknowledgements from dstores that weren't chosen, or that already acknowledged, are ignored.
+     */
+    public static void setStoreAck(String _fileName, int _port) {
+        IndexProperties properties = files.get(_fileName);
+
+        // The store may have already timed out and been removed.
+        if (properties == null) return;
+
+        DstoreAcks storeAcks = properties.storeAcks;
+        if (storeAcks == null || !storeAcks.isPending(_port)) return;
+
+        // The replica is recorded before the acknowledgement can complete the store.
+        addReplica(_fileName, _port);
+        storeAcks.ack(_port);
+    }
+
+
+
+    //// MOVING ////
+
+    /**
+     * Marks a stored file as being moved by a rebalance.
+     * 
+     * Returns false if the file isn't stored, e.g. if a client has started removing it.
+     * Moves aren't logged, as a file that was moving is still stored after a restart.
+     * @param _keptReplicas dstores that hold the file before and after the move.
+     */
+    public static boolean startMove(String _fileName, int[] _keptReplicas) {
+        IndexProperties properties = files.get(_fileName);
+        if (properties == null) return false;
+
+        properties.movingReplicas = _keptReplicas;
+        properties.moveDone = new AckLatch(1);
+
+        if (properties.changeState(FileState.STORED, FileState.MOVING)) return true;
+
+        properties.moveDone.ack();
+        return false;
     }
 
-    public static void incrementStoreAcks(String _fileName) {
-        files.get(_fileName).storeAcks.increment();
+    /**
+     * Marks a moving file as stored again, and wakes the operations waiting for the move.
+     */
+    public static void finishMove(String _fileName) {
+        IndexProperties properties = files.get(_fileName);
+        if (properties == null) return;
+
+        properties.changeState(FileState.MOVING, FileState.STORED);
+        properties.movingReplicas = null;
+
+        AckLatch moveDone = properties.moveDone;
+        if (moveDone != null) moveDone.ack();
     }
 
-    public static Count getStoreAcks(String _fileName) {
-        return files.get(_fileName).storeAcks;
+    /**
+     * Waits for a rebalance to finish moving the file, if it is moving.
+     */
+    public static void awaitMove(String _fileName, int _timeout) throws TimeoutException {
+        IndexProperties properties = files.get(_fileName);
+        if (properties == null || properties.getState() != FileState.MOVING) return;
+
+        AckLatch moveDone = properties.moveDone;
+        if (moveDone != null) moveDone.await(_timeout);
     }
 
 
@@ -84,23 +440,42 @@ public class Index {
      * Return true if the file is in the process of being removed.
      */
     public static boolean isFileBeingRemoved(String _fileName) { 
-        return files.get(_fileName).removeInProcess.isSet(); 
+        return getState(_fileName) == FileState.REMOVING; 
     }
 
     /**
-     * Set whether or not hte controller is in the process of removing the file.
+     * Marks a stored file as being removed.
+     * 
+     * Returns false if the file isn't stored, e.g. if another client is already removing it.
      */
-    public static void removingFile(String _fileName, boolean _removeInProcess) {
-        if (_removeInProcess) files.get(_fileName).removeInProcess.set();
-        else files.get(_fileName).removeInProcess.reset();
+    public static boolean startRemove(String _fileName) {
+        return changeState(_fileName, FileState.STORED, FileState.REMOVING);
     }
 
-    public static void setRemoveAck(String _fileName, boolean _removeAck) {
-        if (_removeAck) files.get(_fileName).removeAck.set();
-        else files.get(_fileName).removeAck.reset();
+    /**
+     * Start waiting for REMOVE acknowledgements from the given dstores.
+     * 
+     * Returns the acknowledgements being waited for.
+     * @throws IndexException if the file is absent.
+     */
+    public static DstoreAcks resetRemoveAcks(String _fileName, Iterable<Integer> _ports) throws IndexException {
+        IndexProperties properties = files.get(_fileName);
+        if (properties == null) throw new IndexException(_fileName + " is no longer in the index");
+
+        DstoreAcks removeAcks = new DstoreAcks(_ports);
+        properties.removeAcks = removeAcks;
+
+        return removeAcks;
     }
 
-    public static Flag getRemoveAck(String _fileName) { 
-        return files.get(_fileName).removeAck;
+    /**
+     * Records a REMOVE acknowledgement from a dstore.
+     */
+    public static void setRemoveAck(String _fileName, int _port) {
+        IndexProperties properties = files.get(_fileName);
+        if (properties == null) return;
+
+        DstoreAcks removeAcks = properties.removeAcks;
+        if (removeAcks != null) removeAcks.ack(_port);
     }
 }
@@ -0,0 +1,65 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures Index throughput under a mix of concurrent operations.
+ * 
+ * Usage: java IndexBenchmark [entries] [threads] [seconds]
+ * e.g.   java -Xmx8g IndexBenchmark 10000000 8 10
+ * 
+ * The index is filled with stored files, then each thread repeatedly picks a 
+ * random file and performs an operation: 80% existence/state checks (LOAD), 
+ * 10% store of a new file and 10% remove of an existing file. 
+ * Prints the operations per second as CSV.
+ */
+public class IndexBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        Index.setup();
+        for (int i = 0; i < entries; i++) {
+            Index.addFile("file" + i, i);
+            Index.storeComplete("file" + i);
+        }
+
+        LongAdder operations = new LongAdder();
+        long endTime = System.nanoTime() + seconds * 1000000000L;
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                while (System.nanoTime() < endTime) {
+                    for (int i = 0; i < 1000; i++) {
+                        String fileName = "file" + random.nextInt(entries * 2);
+                        int operation = random.nextInt(10);
+
+                        if (operation == 0) {
+                            try {
+                                if (Index.addFile(fileName, 1)) Index.storeComplete(fileName);
+                            } catch (IndexException e) {
+                                throw new RuntimeException(e);
+                            }
+                        } else if (operation == 1) {
+                            if (Index.startRemove(fileName)) Index.removeFile(fileName);
+                        } else {
+                            if (Index.fileExists(fileName)) Index.getState(fileName);
+                        }
+                    }
+
+                    operations.add(1000);
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) thread.join();
+
+        System.out.println("entries,threads,ops_per_s");
+        System.out.println(entries + "," + threadCount + "," + operations.sum() / seconds);
+    }
+}
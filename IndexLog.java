@@ -0,0 +1,436 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Write-ahead log and snapshots of the controller's index.
+ *
+ * Every index change is appended to the current log file. A writer thread
+ * writes and forces everything appended since its last write in one go
+ * (group commit), so operations waiting for their changes to be durable
+ * share each force. Once enough changes have been logged, a new log file is
+ * started and the index is written to a snapshot, after which the older
+ * log files are deleted. Recovery loads the snapshot and replays the logs
+ * written after it.
+ *
+ * Changes are applied to the index before they are logged, so a snapshot
+ * taken after a log file is started holds every change logged before it.
+ */
+public class IndexLog {
+    /**
+     * Longest file name that can be logged, in UTF-8 bytes.
+     */
+    public static final int MAX_NAME_BYTES = 65535;
+
+    private static final int SNAPSHOT_MAGIC = 0x49445853;
+    private static final int END_OF_SNAPSHOT = -1;
+
+    // Log record types.
+    private static final byte ADD = 1;
+    private static final byte STATE = 2;
+    private static final byte REPLICAS = 3;
+    private static final byte REMOVE = 4;
+
+    private final File folder;
+
+    /**
+     * Number of changes logged before a snapshot is taken.
+     */
+    private final long snapshotInterval;
+
+    // Guarded by this.
+    private FileChannel log;
+    private long logNumber;
+    private ByteArrayOutputStream pending;
+    private DataOutputStream pendingOut;
+    private long appendedCount;
+    private long flushedCount;
+    private long changesSinceSnapshot;
+    private boolean snapshotRunning;
+    private boolean writing;
+    private IOException failure;
+
+    private Thread writer;
+
+    public IndexLog(File _folder, long _snapshotInterval) {
+        folder = _folder;
+        snapshotInterval = _snapshotInterval;
+
+        pending = new ByteArrayOutputStream(64 * 1024);
+        pendingOut = new DataOutputStream(pending);
+    }
+
+
+
+    //// RECOVERY ////
+
+    /**
+     * Loads the latest snapshot and replays the logs written after it into a new files map,
+     * then starts a new log file and the writer thread.
+     * @throws IOException
+     */
+    public synchronized ConcurrentHashMap<String, IndexProperties> recover() throws IOException {
+        if (!folder.exists() && !folder.mkdirs()) throw new IOException("failed to create " + folder);
+
+        ConcurrentHashMap<String, IndexProperties> files;
+        long firstLog = 0;
+
+        File snapshot = new File(folder, "snapshot");
+        if (snapshot.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 20))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException(snapshot + " isn't an index snapshot");
+
+                firstLog = in.readLong();
+
+                // Sized for the files in the snapshot, so the map isn't resized while loading.
+                files = new ConcurrentHashMap<String, IndexProperties>(in.readInt() + 1024);
+                readSnapshot(in, files);
+            }
+        } else {
+            files = new ConcurrentHashMap<String, IndexProperties>();
+        }
+
+
+        long lastLog = firstLog - 1;
+        for (long number = firstLog; logFile(number).exists(); number++) {
+            replayLog(logFile(number), files);
+            lastLog = number;
+        }
+
+        // Replayed changes count towards the next snapshot, so long logs are compacted soon after starting.
+        logNumber = lastLog + 1;
+        log = FileChannel.open(logFile(logNumber).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        writer = new Thread(this::writeLoop, "wal");
+        writer.setDaemon(true);
+        writer.start();
+
+        return files;
+    }
+
+    /**
+     * Reads the files in a snapshot, after its header, into the files map.
+     */
+    private static void readSnapshot(DataInputStream _in, ConcurrentHashMap<String, IndexProperties> _files) throws IOException {
+        FileState[] states = FileState.values();
+        byte[] nameBuffer = new byte[65536];
+
+        while (true) {
+            int fileSize = _in.readInt();
+            if (fileSize == END_OF_SNAPSHOT) return;
+
+            String fileName = readName(_in, nameBuffer);
+            FileState state = states[_in.readByte()];
+            int[] replicas = readReplicas(_in);
+
+            IndexProperties properties = new IndexProperties(fileSize);
+            properties.setState(state);
+            properties.setReplicas(replicas);
+
+            _files.put(fileName, properties);
+        }
+    }
+
+    /**
+     * Applies the changes in a log file to the files map.
+     *
+     * A record cut short by a crash ends the replay of that file.
+     */
+    private void replayLog(File _log, ConcurrentHashMap<String, IndexProperties> _files) throws IOException {
+        byte[] nameBuffer = new byte[65536];
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_log), 1 << 20))) {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                try {
+                    String fileName = readName(in, nameBuffer);
+
+                    if (type == ADD) _files.put(fileName, new IndexProperties(in.readInt()));
+                    else if (type == STATE) {
+                        FileState state = FileState.values()[in.readByte()];
+
+                        IndexProperties properties = _files.get(fileName);
+                        if (properties != null) properties.setState(state);
+                    } else if (type == REPLICAS) {
+                        int[] replicas = readReplicas(in);
+
+                        IndexProperties properties = _files.get(fileName);
+                        if (properties != null) properties.setReplicas(replicas);
+                    } else if (type == REMOVE) _files.remove(fileName);
+                    else throw new IOException("unknown record type " + type + " in " + _log);
+
+                    changesSinceSnapshot++;
+                } catch (EOFException e) {
+                    Message.info("ignoring the incomplete last record of " + _log, 1);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a file name written by writeName, decoding it straight from a reused buffer.
+     */
+    private static String readName(DataInputStream _in, byte[] _buffer) throws IOException {
+        int length = _in.readUnsignedShort();
+        _in.readFully(_buffer, 0, length);
+
+        return new String(_buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int[] readReplicas(DataInputStream _in) throws IOException {
+        int[] replicas = new int[_in.readUnsignedShort()];
+        for (int i = 0; i < replicas.length; i++) replicas[i] = _in.readInt();
+
+        return replicas;
+    }
+
+
+
+    //// LOGGING CHANGES ////
+
+    public void logAdd(String _fileName, int _fileSize) {
+        append(ADD, _fileName, out -> out.writeInt(_fileSize));
+    }
+
+    public void logState(String _fileName, FileState _state) {
+        append(STATE, _fileName, out -> out.writeByte(_state.ordinal()));
+    }
+
+    public void logReplicas(String _fileName, int[] _replicas) {
+        append(REPLICAS, _fileName, out -> writeReplicas(out, _replicas));
+    }
+
+    public void logRemove(String _fileName) {
+        append(REMOVE, _fileName, out -> {});
+    }
+
+    private interface RecordBody {
+        void write(DataOutputStream _out) throws IOException;
+    }
+
+    private synchronized void append(byte _type, String _fileName, RecordBody _body) {
+        try {
+            pendingOut.writeByte(_type);
+            writeName(pendingOut, _fileName);
+            _body.write(pendingOut);
+        } catch (IOException e) {
+            // Writing to memory doesn't fail.
+            throw new IllegalStateException(e);
+        }
+
+        appendedCount++;
+        changesSinceSnapshot++;
+
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of changes logged that haven't been forced to disk yet.
+     */
+    public synchronized long getPendingCount() {
+        return appendedCount - flushedCount;
+    }
+
+    /**
+     * Waits until every change logged so far has been written and forced to disk.
+     * @throws IOException if the log can't be written.
+     */
+    public synchronized void sync() throws IOException {
+        long target = appendedCount;
+
+        try {
+            while (flushedCount < target && failure == null) wait();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for the index log");
+        }
+
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Writes and forces the pending changes, one batch at a time.
+     */
+    private void writeLoop() {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(64 * 1024);
+
+        while (true) {
+            FileChannel batchLog;
+            long batchCount;
+
+            synchronized (this) {
+                try {
+                    while (pending.size() == 0) wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                // Swap buffers, so changes can be appended while the batch is written.
+                ByteArrayOutputStream full = pending;
+                pending = batch;
+                pendingOut = new DataOutputStream(pending);
+                batch = full;
+
+                batchLog = log;
+                batchCount = appendedCount;
+                writing = true;
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()) batchLog.write(buffer);
+                batchLog.force(false);
+            } catch (IOException e) {
+                Message.error("failed to write the index log: " + e.getMessage(), 0);
+
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            batch.reset();
+
+            synchronized (this) {
+                flushedCount = batchCount;
+                writing = false;
+                notifyAll();
+
+                // A snapshot switched to a new log file while this batch was written.
+                if (batchLog != log) closeQuietly(batchLog);
+
+                if (changesSinceSnapshot >= snapshotInterval && !snapshotRunning) {
+                    snapshotRunning = true;
+                    changesSinceSnapshot = 0;
+
+                    Thread snapshotThread = new Thread(this::snapshot, "snap");
+                    snapshotThread.setDaemon(true);
+                    snapshotThread.start();
+                }
+            }
+        }
+    }
+
+
+
+    //// SNAPSHOTS ////
+
+    /**
+     * Starts a new log file, writes the index to a snapshot and deletes the older log files.
+     */
+    private void snapshot() {
+        try {
+            long nextLog;
+            Map<String, IndexProperties> files = Index.getFiles();
+
+            // Changes still pending go to the new log file. Replaying them after 
+            // the snapshot is harmless, as each record sets a file's values outright.
+            synchronized (this) {
+                FileChannel oldLog = log;
+                nextLog = logNumber + 1;
+
+                log = FileChannel.open(logFile(nextLog).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                logNumber = nextLog;
+
+                // Otherwise the writer closes it once its batch is written.
+                if (!writing) closeQuietly(oldLog);
+            }
+
+            long start = System.nanoTime();
+
+            File temp = new File(folder, "snapshot.tmp");
+            int count = 0;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 20))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(nextLog);
+                out.writeInt(files.size());
+
+                for (Map.Entry<String, IndexProperties> file : files.entrySet()) {
+                    IndexProperties properties = file.getValue();
+                    FileState state = properties.getState();
+
+                    // Moves aren't logged, so a moving file is recorded as stored.
+                    if (state == FileState.MOVING) state = FileState.STORED;
+
+                    out.writeInt(properties.fileSize);
+                    writeName(out, file.getKey());
+                    out.writeByte(state.ordinal());
+                    writeReplicas(out, properties.getReplicas());
+
+                    count++;
+                }
+
+                out.writeInt(END_OF_SNAPSHOT);
+            }
+
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp.toPath(), new File(folder, "snapshot").toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            // Until the rename is durable, a crash could bring back the old snapshot after its logs are gone.
+            try (FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+
+            // The snapshot holds everything in the older logs.
+            for (long number = nextLog - 1; number >= 0 && logFile(number).exists(); number--)
+                Files.delete(logFile(number).toPath());
+
+            Message.info("wrote index snapshot of " + count + " files in " + (System.nanoTime() - start) / 1000000 + "ms", 0);
+        } catch (IOException e) {
+            Message.error("failed to write index snapshot: " + e.getMessage(), 0);
+        } finally {
+            synchronized (this) {
+                snapshotRunning = false;
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel _channel) {
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            Message.error("failed to close index log: " + e.getMessage(), 0);
+        }
+    }
+
+    private static void writeName(DataOutputStream _out, String _fileName) throws IOException {
+        byte[] name = _fileName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) throw new IOException("file name is too long to log");
+
+        _out.writeShort(name.length);
+        _out.write(name);
+    }
+
+    private static void writeReplicas(DataOutputStream _out, int[] _replicas) throws IOException {
+        _out.writeShort(_replicas.length);
+        for (int replica : _replicas) _out.writeInt(replica);
+    }
+
+    private File logFile(long _number) {
+        return new File(folder, "log." + _number);
+    }
+}
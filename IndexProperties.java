@@ -1,26 +1,105 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 public class IndexProperties {
-    public int fileSize;
+    private static final AtomicReferenceFieldUpdater<IndexProperties, FileState> STATE =
+        AtomicReferenceFieldUpdater.newUpdater(IndexProperties.class, FileState.class, "state");
+
+    public final int fileSize;
+
+    /**
+     * Whether the file is being stored, stored or being removed.
+     * 
+     * Only changed with compare and set, so two operations can't move the file into the same state.
+     */
+    private volatile FileState state;
+
+    /**
+     * Tracks STORE acknowledgements from each dstore chosen to store the file.
+     * 
+     * Null until the controller starts waiting for acknowledgements.
+     */
+    public volatile DstoreAcks storeAcks;
+
+    /**
+     * Tracks REMOVE acknowledgements from each dstore holding the file.
+     */
+    public volatile DstoreAcks removeAcks;
+
+    /**
+     * Completes once a rebalance has finished moving the file.
+     * 
+     * Null until the file is first moved.
+     */
+    public volatile AckLatch moveDone;
 
     /**
-     * Flag is set if the file is currently in the process of being stored.
+     * Ports of the dstores that keep the file throughout the current move, 
+     * so loads can be served from them while it is moving.
      */
-    public Flag storeInProcess;
+    public volatile int[] movingReplicas;
 
     /**
-     * Counts the number of STORE acknowledgements during a STORE operation.
+     * CRC32C of the file's contents reported by the first dstore to send one, or -1 if unknown.
+     * 
+     * Not persisted, so it is relearned from the dstores after a restart.
      */
-    public Count storeAcks;
+    public volatile long checksum = -1;
 
-    public Flag removeInProcess;
-    public Flag removeAck;
+    /**
+     * Index change count (see Index.getChangeCount) when the file's state or replicas last changed.
+     */
+    public volatile long lastChange;
+
+    /**
+     * Ports of the dstores holding a copy of the file.
+     * 
+     * Replaced rather than modified, so it can be read without locking.
+     */
+    private volatile int[] replicas;
 
     public IndexProperties(int _fileSize) {
         fileSize = _fileSize; 
 
-        storeInProcess = new Flag();
-        storeAcks = new Count();
+        state = FileState.STORING;
+        replicas = new int[0];
+    }
+
+    public int[] getReplicas() { return replicas; }
+
+    /**
+     * Records a dstore as holding the file.
+     * 
+     * Returns false if it was already recorded.
+     */
+    public synchronized boolean addReplica(int _port) {
+        for (int replica : replicas) if (replica == _port) return false;
+
+        int[] newReplicas = Arrays.copyOf(replicas, replicas.length + 1);
+        newReplicas[replicas.length] = _port;
+        replicas = newReplicas;
+
+        return true;
+    }
+
+    /**
+     * Replaces the recorded replicas, and returns the previous ones.
+     */
+    public synchronized int[] setReplicas(int[] _ports) {
+        int[] oldReplicas = replicas;
+        replicas = _ports;
+
+        return oldReplicas;
+    }
+
+    public FileState getState() { return state; }
+
+    /**
+     * Sets the state outright, only while the index is being recovered.
+     */
+    public void setState(FileState _state) { state = _state; }
 
-        removeInProcess = new Flag();
-        removeAck = new Flag();
+    public boolean changeState(FileState _from, FileState _to) {
+        return STATE.compareAndSet(this, _from, _to);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,60 @@
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Measures how long the controller takes to recover a persisted index.
+ * 
+ * Usage: java IndexRecoveryBenchmark [files] [folder]
+ * e.g.   java -Xmx16g IndexRecoveryBenchmark 20000000 /data/bench
+ * 
+ * Stores the files (with 3 replicas each) in a persisted index, then recovers 
+ * it twice: once by replaying the whole log and once from a snapshot. 
+ * Prints the time and the size on disk of each recovery as CSV.
+ */
+public class IndexRecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        File folder = args.length > 1 ? new File(args[1]) : Files.createTempDirectory("index").toFile();
+
+        for (File file : folder.listFiles()) file.delete();
+
+        // Write the index with snapshots turned off, so it is all in the log.
+        long start = System.nanoTime();
+
+        Index.setup(folder, Long.MAX_VALUE);
+        for (int i = 0; i < fileCount; i++) {
+            String fileName = "file" + i;
+
+            Index.addFile(fileName, i);
+            for (int replica = 0; replica < 3; replica++) Index.addReplica(fileName, 1000 + (i + replica) % 20);
+            Index.storeComplete(fileName);
+        }
+        Index.sync();
+
+        System.out.println("phase,files,ms,disk_mb");
+        System.out.println("write," + fileCount + "," + (System.nanoTime() - start) / 1000000 + "," + diskUsage(folder));
+
+        // Recover by replaying the log. The replayed changes trigger a snapshot after the next change.
+        start = System.nanoTime();
+        Index.setup(folder, 1);
+        System.out.println("replay-log," + Index.fileCount() + "," + (System.nanoTime() - start) / 1000000 + "," + diskUsage(folder));
+
+        Index.addFile("last", 0);
+        Index.sync();
+
+        // Wait for the snapshot to replace the older logs.
+        while (new File(folder, "log.0").exists()) Thread.sleep(100);
+
+        start = System.nanoTime();
+        Index.setup(folder, Long.MAX_VALUE);
+        System.out.println("load-snapshot," + Index.fileCount() + "," + (System.nanoTime() - start) / 1000000 + "," + diskUsage(folder));
+    }
+
+    private static long diskUsage(File _folder) {
+        long bytes = 0;
+        for (File file : _folder.listFiles()) bytes += file.length();
+
+        return bytes / (1024 * 1024);
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Measures how long a dstore takes to build the inventory it sends with JOIN.
+ * 
+ * Usage: java InventoryScanBenchmark [files] [folder]
+ * e.g.   java InventoryScanBenchmark 1000000 /data/dstore1
+ * 
+ * Fills the folder with small files if it holds fewer than asked for, then scans 
+ * it with and without checksums. Prints the scan time and packet size as CSV.
+ */
+public class InventoryScanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        File folder = args.length > 1 ? new File(args[1]) : Files.createTempDirectory("inventory").toFile();
+
+        fill(folder, fileCount);
+
+        System.out.println("checksums,files,scan_ms,packet_ms,packet_mb");
+
+        // The first scan warms up the JIT and the file system cache.
+        scan(folder, false, false);
+        scan(folder, false, true);
+        scan(folder, true, true);
+    }
+
+    private static void fill(File _folder, int _fileCount) throws IOException {
+        String[] existing = _folder.list();
+        if (existing != null && existing.length >= _fileCount) return;
+
+        _folder.mkdirs();
+        byte[] contents = "contents".getBytes();
+        for (int i = 0; i < _fileCount; i++) Files.write(new File(_folder, "file" + i).toPath(), contents);
+    }
+
+    private static void scan(File _folder, boolean _checksums, boolean _print) throws IOException {
+        long start = System.nanoTime();
+        DstoreInventory inventory = DstoreInventory.scan(_folder, _checksums);
+        long scanned = System.nanoTime();
+        String packet = inventory.toPacket();
+        long built = System.nanoTime();
+
+        if (_print) System.out.println(_checksums + "," + inventory.size() + "," + (scanned - start) / 1000000 
+            + "," + (built - scanned) / 1000000 + "," + packet.length() / (1024 * 1024));
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds.
+ *
+ * Values are counted in log-linear buckets: each power of two is split into
+ * 32 buckets, so a percentile is within about 3% of the recorded value, for
+ * a fixed 15KB per histogram. Recording a value is one atomic increment.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder total;
+    private final AtomicLong max;
+
+    public LatencyHistogram(String _name) {
+        name = _name;
+
+        buckets = new AtomicLongArray(BUCKET_COUNT);
+        total = new LongAdder();
+        max = new AtomicLong();
+    }
+
+    public String getName() { return name; }
+
+
+
+    //// RECORDING ////
+
+    public void record(long _nanos) {
+        if (_nanos < 0) _nanos = 0;
+
+        buckets.incrementAndGet(bucket(_nanos));
+        total.add(_nanos);
+
+        long currentMax = max.get();
+        while (_nanos > currentMax && !max.compareAndSet(currentMax, _nanos)) currentMax = max.get();
+    }
+
+    /**
+     * Records the time since a System.nanoTime(), and returns the current System.nanoTime(),
+     * so the phases of an operation can be timed one after the other.
+     */
+    public long recordSince(long _startNanos) {
+        long now = System.nanoTime();
+        record(now - _startNanos);
+
+        return now;
+    }
+
+    private static int bucket(long _nanos) {
+        if (_nanos < SUB_BUCKETS) return (int) _nanos;
+
+        int shift = 63 - Long.numberOfLeadingZeros(_nanos) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((_nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the highest value counted in a bucket.
+     */
+    private static long highestValue(int _bucket) {
+        if (_bucket < SUB_BUCKETS) return _bucket;
+
+        int shift = _bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + _bucket % SUB_BUCKETS) << shift;
+
+        return lowest + (1L << shift) - 1;
+    }
+
+
+
+    //// READING ////
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) count += buckets.get(i);
+
+        return count;
+    }
+
+    public long max() { return max.get(); }
+
+    /**
+     * Returns the sum of the recorded values in nanoseconds.
+     */
+    public long sum() { return total.sum(); }
+
+    /**
+     * Returns the mean in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long mean() {
+        long count = count();
+
+        return count == 0 ? 0 : sum() / count;
+    }
+
+    /**
+     * Returns the value in nanoseconds that the given fraction (e.g. 0.99)
+     * of recorded values are at or below, or 0 if nothing was recorded.
+     */
+    public long percentile(double _fraction) {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(_fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestValue(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Returns "name count=N mean=... p50=... p99=... p999=... max=...", in microseconds.
+     */
+    @Override
+    public String toString() {
+        return name + " count=" + count() + " mean=" + mean() / 1000
+            + " p50=" + percentile(0.5) / 1000 + " p99=" + percentile(0.99) / 1000
+            + " p999=" + percentile(0.999) / 1000 + " max=" + max() / 1000;
+    }
+}
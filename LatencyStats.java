@@ -0,0 +1,43 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The latency histograms of this process, by name.
+ *
+ * Histograms are registered once, e.g. in a static field, and recorded
+ * into directly, so the registry isn't touched on the hot path.
+ */
+public class LatencyStats {
+
+    private static final ConcurrentSkipListMap<String, LatencyHistogram> histograms =
+        new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+    /**
+     * Returns the histogram with the name, creating it if needed.
+     *
+     * Names are "operation" for the whole operation and "operation.phase" for its phases.
+     */
+    public static LatencyHistogram get(String _name) {
+        return histograms.computeIfAbsent(_name, LatencyHistogram::new);
+    }
+
+    public static Iterable<LatencyHistogram> getHistograms() {
+        return histograms.values();
+    }
+
+    /**
+     * Returns the response to STATS: a line per histogram that has values
+     * (see LatencyHistogram.toString), sorted by name, then "STATS_END".
+     */
+    public static List<String> toPackets() {
+        List<String> packets = new ArrayList<String>();
+
+        for (LatencyHistogram histogram : histograms.values())
+            if (histogram.count() > 0) packets.add("STATS " + histogram);
+
+        packets.add("STATS_END");
+
+        return packets;
+    }
+}
@@ -0,0 +1,30 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places files on the dstores holding the fewest files.
+ * 
+ * Dstores with the same number of files are picked in a random order, 
+ * so concurrent stores don't all pick the same dstores.
+ */
+public class LeastLoadedPlacement implements PlacementPolicy {
+
+    @Override
+    public List<ClientDstoreListener> choose(String _fileName, List<ClientDstoreListener> _dstores, int _count) {
+        List<ClientDstoreListener> candidates = new ArrayList<ClientDstoreListener>(_dstores);
+
+        // Counts change while stores finish, so sort by a copy of them.
+        Map<ClientDstoreListener, Integer> fileCounts = new HashMap<ClientDstoreListener, Integer>();
+        for (ClientDstoreListener candidate : candidates) 
+            fileCounts.put(candidate, Index.dstoreFileCount(candidate.getClientPort()));
+
+        Collections.shuffle(candidates);
+        candidates.sort(Comparator.comparingInt(fileCounts::get));
+
+        return candidates.subList(0, Math.min(_count, candidates.size()));
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses which replica a client loads a file from.
+ *
+ * Counts the loads each dstore is currently serving, from the LOAD_FROM
+ * response until the client's next packet or the timeout, whichever is
+ * first, and picks the connected replica serving the fewest. Ties are
+ * broken randomly.
+ */
+public class LoadBalancer {
+
+    /**
+     * A load counted against a dstore, which stops counting once it is finished or expires.
+     */
+    public static class Load {
+        private final int port;
+        private final AtomicBoolean finished;
+        private final TimerWheel.Timeout expiry;
+
+        private Load(int _port, int _timeout) {
+            port = _port;
+            finished = new AtomicBoolean();
+
+            // A client that stays idle after loading doesn't keep the dstore busy.
+            expiry = getTimers().schedule(this::finish, _timeout);
+        }
+
+        public void finish() {
+            if (!finished.compareAndSet(false, true)) return;
+
+            if (expiry != null) expiry.cancel();
+            inFlightLoads.get(port).decrementAndGet();
+        }
+    }
+
+    private static ConcurrentHashMap<Integer, AtomicInteger> inFlightLoads = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    /**
+     * Expires loads that haven't finished within the timeout.
+     */
+    private static TimerWheel timers;
+
+    /**
+     * Returns the port of the replica to load from, or -1 if every replica is excluded or disconnected.
+     */
+    public static int choose(int[] _replicas, Set<Integer> _excluded) {
+        int chosenPort = -1;
+        int chosenLoads = Integer.MAX_VALUE;
+        int ties = 0;
+
+        for (int replica : _replicas) {
+            if (_excluded.contains(replica)) continue;
+            if (Controller.getDStoreListener(replica) == null) continue;
+
+            int loads = inFlightLoads(replica);
+
+            if (loads < chosenLoads) {
+                chosenPort = replica;
+                chosenLoads = loads;
+                ties = 1;
+            } else if (loads == chosenLoads) {
+                // Reservoir sampling, so each tied replica is equally likely.
+                ties++;
+                if (ThreadLocalRandom.current().nextInt(ties) == 0) chosenPort = replica;
+            }
+        }
+
+        return chosenPort;
+    }
+
+    public static int inFlightLoads(int _port) {
+        AtomicInteger loads = inFlightLoads.get(_port);
+
+        return loads == null ? 0 : loads.get();
+    }
+
+    /**
+     * Starts counting a load against a dstore, until it is finished or the timeout (ms) expires.
+     */
+    public static Load loadStarted(int _port, int _timeout) {
+        inFlightLoads.computeIfAbsent(_port, port -> new AtomicInteger()).incrementAndGet();
+
+        return new Load(_port, _timeout);
+    }
+
+    private static synchronized TimerWheel getTimers() {
+        if (timers == null) {
+            timers = new TimerWheel(10, 512, "lbtmr");
+            timers.start();
+        }
+
+        return timers;
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+
+/**
+ * Measures LOAD_DATA throughput and heap allocation for a range of file sizes.
+ * 
+ * Usage: java LoadDataBenchmark [sizes] [repeats]
+ * e.g.   java LoadDataBenchmark 1K,1M,64M,1G,4G 5
+ * 
+ * A dstore is started in this JVM with a temporary file folder holding one 
+ * sparse file per size. Each file is loaded the given number of times and 
+ * the average throughput and bytes allocated per load are printed as CSV.
+ */
+public class LoadDataBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "1K,1M,64M,1G,4G").split(",");
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        File fileFolder = Files.createTempDirectory("loaddata").toFile();
+        for (String size : sizes) createFile(new File(fileFolder, size), parseSize(size));
+
+        // The dstore's logging is switched off so it doesn't mix with the results.
+        PrintStream results = System.out;
+        Message.setLevel(LogLevel.OFF);
+
+        int port = freePort();
+        Thread dstore = new Thread(() -> Dstore.main(new String[] { 
+            String.valueOf(port), String.valueOf(freePort()), "60000", fileFolder.getAbsolutePath() }));
+        dstore.setDaemon(true);
+        dstore.start();
+        Thread.sleep(1000);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        results.println("size,bytes,mb_per_s,allocated_bytes_per_load");
+        for (String size : sizes) {
+            long fileSize = parseSize(size);
+
+            // Warm up.
+            load(port, size, fileSize);
+
+            long allocatedBefore = totalAllocatedBytes(threads);
+            long startTime = System.nanoTime();
+
+            for (int i = 0; i < repeats; i++) load(port, size, fileSize);
+
+            long elapsed = System.nanoTime() - startTime;
+            long allocated = totalAllocatedBytes(threads) - allocatedBefore;
+
+            double megabytesPerSecond = (fileSize * (double) repeats / (1024 * 1024)) / (elapsed / 1e9);
+            results.println(size + "," + fileSize + "," + String.format("%.1f", megabytesPerSecond) + "," + (allocated / repeats));
+        }
+
+        for (File file : fileFolder.listFiles()) file.delete();
+        fileFolder.delete();
+    }
+
+    /**
+     * Sends LOAD_DATA and reads the whole file into a reused buffer.
+     */
+    private static void load(int _port, String _fileName, long _fileSize) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), _port)) {
+            new PrintWriter(socket.getOutputStream(), true).println("LOAD_DATA " + _fileName);
+
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            long received = 0;
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) >= 0) received += bytesRead;
+
+            if (received != _fileSize) 
+                throw new IOException("received " + received + " of " + _fileSize + " bytes");
+        }
+    }
+
+    private static long totalAllocatedBytes(com.sun.management.ThreadMXBean _threads) {
+        long total = 0;
+        for (long allocated : _threads.getThreadAllocatedBytes(_threads.getAllThreadIds())) 
+            if (allocated > 0) total += allocated;
+
+        return total;
+    }
+
+    private static void createFile(File _file, long _size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(_file, "rw")) {
+            file.setLength(_size);
+        }
+    }
+
+    private static long parseSize(String _size) {
+        long unit = 1;
+        switch (_size.charAt(_size.length() - 1)) {
+            case 'K': unit = 1L << 10; break;
+            case 'M': unit = 1L << 20; break;
+            case 'G': unit = 1L << 30; break;
+        }
+
+        String number = unit == 1 ? _size : _size.substring(0, _size.length() - 1);
+        return Long.parseLong(number) * unit;
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
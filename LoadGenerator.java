@@ -0,0 +1,657 @@
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Generates load on a controller and its dstores, speaking the client protocol directly.
+ *
+ * Usage: java LoadGenerator cport [name=value ...]
+ * e.g.   java LoadGenerator 12345 mode=open rate=500 clients=32 duration=60
+ *            mix=store:10,load:80,list:5,remove:5 size=1K-1M keys=10000 zipf=0.99 format=json
+ *
+ * Options:
+ *   mode=closed|open    closed: each client sends a request once its last one has finished;
+ *                       open: requests arrive at a mean rate (Poisson) however long earlier ones take
+ *   clients=N           concurrent clients, each with its own connection (default 8)
+ *   rate=N              requests per second in open mode (default 100)
+ *   duration=S          seconds to generate load for (default 30)
+ *   interval=S          seconds between reports (default 1)
+ *   mix=op:weight,...   weights of store, load, list and remove (default store:20,load:70,list:5,remove:5)
+ *   size=SPEC           file sizes: N, MIN-MAX (uniform) or lognormal:MEDIAN:SIGMA,
+ *                       with K, M or G suffixes (default 16K)
+ *   keys=N              number of file names (default 1000)
+ *   zipf=S              skew of the file names' popularity, 0 for uniform (default 0.99)
+ *   preload=true|false  store every file before generating load (default true)
+ *   host=HOST           host of the controller and dstores (default localhost)
+ *   timeout=MS          socket timeout (default 5000)
+ *   format=csv|json     report format, JSON being an object per line (default csv)
+ *   out=FILE            report file (default stdout)
+ *   prefix=NAME         file name prefix (default unique to the run)
+ *
+ * Every interval, a line is reported for each type of operation that completed:
+ * the count, errors (error responses, e.g. loading a removed file), failures
+ * (timeouts and broken connections), throughput and latency percentiles in
+ * milliseconds. The run ends with a "total" line for each type. In open mode,
+ * latency is measured from when a request was due, so time spent queued
+ * behind slow requests is counted.
+ */
+public class LoadGenerator {
+
+    private enum Operation { STORE, LOAD, LIST, REMOVE }
+
+    // Outcomes of an operation.
+    private static final int OK = 0;
+    private static final int ERROR = 1;
+    private static final int FAILED = 2;
+
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final int CONTENT_CHUNK = 64 * 1024;
+
+    /**
+     * Random bytes that file contents are written from.
+     */
+    private static final byte[] content = new byte[CONTENT_CHUNK];
+
+    private static InetAddress host;
+    private static int cport;
+    private static int timeout;
+
+    private static String prefix;
+    private static Operation[] mixOperations;
+    private static double[] mixWeights;
+    private static FileSizes fileSizes;
+    private static FileNames fileNames;
+
+    private static PrintStream report;
+    private static boolean json;
+
+    /**
+     * Results of the current interval. Recording holds the read lock, and 
+     * replacing the results the write lock, so no result is recorded into 
+     * an interval that has already been reported.
+     */
+    private static volatile Results intervalResults;
+    private static final ReentrantReadWriteLock intervalLock = new ReentrantReadWriteLock();
+    private static Results totalResults;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: java LoadGenerator cport [name=value ...]");
+            return;
+        }
+
+        cport = Integer.parseInt(args[0]);
+        Options options = new Options(args, 1);
+
+        String mode = options.get("mode", "closed");
+        int clients = options.getInt("clients", 8);
+        int rate = options.getInt("rate", 100);
+        int duration = options.getInt("duration", 30);
+        int interval = options.getInt("interval", 1);
+        boolean preload = Boolean.parseBoolean(options.get("preload", "true"));
+
+        if (!mode.equals("closed") && !mode.equals("open")) throw new IllegalArgumentException("invalid mode (must be closed or open)");
+        if (!(clients > 0 && rate > 0 && duration > 0 && interval > 0))
+            throw new IllegalArgumentException("invalid clients, rate, duration or interval (must be >0)");
+
+        host = InetAddress.getByName(options.get("host", "localhost"));
+        timeout = options.getInt("timeout", 5000);
+        prefix = options.get("prefix", "lg" + Long.toString(System.currentTimeMillis() % 1000000000L, 36) + "_");
+
+        parseMix(options.get("mix", "store:20,load:70,list:5,remove:5"));
+        fileSizes = new FileSizes(options.get("size", "16K"));
+        fileNames = new FileNames(options.getInt("keys", 1000), Double.parseDouble(options.get("zipf", "0.99")));
+
+        json = options.get("format", "csv").equals("json");
+        report = options.has("out") ? new PrintStream(new FileOutputStream(options.get("out", "")), true) : System.out;
+
+        new Random(1).nextBytes(content);
+
+        if (preload) preload(clients);
+
+        intervalResults = new Results();
+        totalResults = new Results();
+
+        if (!json) report.println("scope,elapsed_s,operation,count,errors,failures,throughput_per_s,"
+            + "mean_ms,p50_ms,p90_ms,p99_ms,p999_ms,max_ms");
+
+        long startTime = System.nanoTime();
+        long endTime = startTime + TimeUnit.SECONDS.toNanos(duration);
+
+        Thread load = new Thread(() -> {
+            if (mode.equals("closed")) runClosedLoop(clients, endTime);
+            else runOpenLoop(clients, rate, endTime);
+        }, "load");
+        load.start();
+
+        // Report each interval until the load has finished.
+        long intervalStart = startTime;
+        while (load.isAlive()) {
+            long intervalEnd = intervalStart + TimeUnit.SECONDS.toNanos(interval);
+            load.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(intervalEnd - System.nanoTime())));
+
+            long now = System.nanoTime();
+            if (now < intervalEnd && load.isAlive()) continue;
+
+            report("interval", (now - startTime) / 1e9, (now - intervalStart) / 1e9, nextInterval());
+            intervalStart = now;
+        }
+
+        report("total", (System.nanoTime() - startTime) / 1e9, (System.nanoTime() - startTime) / 1e9, totalResults);
+
+        if (report != System.out) report.close();
+    }
+
+
+
+    //// GENERATING LOAD ////
+
+    /**
+     * Runs clients that each send their next request as soon as the last one finishes.
+     */
+    private static void runClosedLoop(int _clients, long _endTime) {
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < _clients; i++) {
+            Thread thread = new Thread(() -> {
+                Client client = new Client();
+
+                while (System.nanoTime() < _endTime) perform(client, System.nanoTime());
+
+                client.close();
+            }, "client" + i);
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends requests at exponentially distributed intervals, which a pool of clients perform.
+     *
+     * Requests that arrive while every client is busy wait for one. Every request
+     * sent before the end is waited for, so the totals include all of them.
+     */
+    private static void runOpenLoop(int _clients, int _rate, long _endTime) {
+        List<Client> opened = new ArrayList<Client>();
+        ThreadLocal<Client> clients = pooledClients(opened);
+        ExecutorService pool = Executors.newFixedThreadPool(_clients);
+
+        double meanInterval = 1e9 / _rate;
+        long dueTime = System.nanoTime();
+
+        while (dueTime < _endTime) {
+            long wait = dueTime - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+
+            long requestDueTime = dueTime;
+            pool.execute(() -> perform(clients.get(), requestDueTime));
+
+            dueTime += (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanInterval);
+        }
+
+        pool.shutdown();
+        try {
+            // Each request is bounded by the socket timeout, so the queue drains.
+            while (!pool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) 
+                System.err.println("waiting for requests sent before the end to finish");
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+        }
+
+        closeClients(opened);
+    }
+
+    /**
+     * Performs a random operation and records its latency from when it was due.
+     */
+    private static void perform(Client _client, long _dueTime) {
+        Operation operation = chooseOperation();
+        String fileName = fileNames.next();
+
+        int outcome;
+        try {
+            outcome = _client.perform(operation, fileName, fileSizes.next());
+        } catch (IOException e) {
+            outcome = FAILED;
+
+            // The connection may be part way through a response.
+            _client.close();
+        }
+
+        long latency = System.nanoTime() - _dueTime;
+        intervalLock.readLock().lock();
+        try {
+            intervalResults.record(operation, latency, outcome);
+        } finally {
+            intervalLock.readLock().unlock();
+        }
+        totalResults.record(operation, latency, outcome);
+    }
+
+    /**
+     * Starts a new interval, and returns the results of the last one once nothing is being recorded into them.
+     */
+    private static Results nextInterval() {
+        intervalLock.writeLock().lock();
+        try {
+            Results results = intervalResults;
+            intervalResults = new Results();
+
+            return results;
+        } finally {
+            intervalLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores every file, so loads and removes find them.
+     */
+    private static void preload(int _clients) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(_clients);
+        List<Client> opened = new ArrayList<Client>();
+        ThreadLocal<Client> clients = pooledClients(opened);
+
+        for (int i = 0; i < fileNames.size(); i++) {
+            String fileName = fileNames.get(i);
+
+            pool.execute(() -> {
+                try {
+                    clients.get().perform(Operation.STORE, fileName, fileSizes.next());
+                } catch (IOException e) {
+                    clients.get().close();
+                }
+            });
+        }
+
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+
+        closeClients(opened);
+    }
+
+    /**
+     * Gives each thread of a pool its own client, and adds the clients to a list so they can be closed.
+     */
+    private static ThreadLocal<Client> pooledClients(List<Client> _opened) {
+        return ThreadLocal.withInitial(() -> {
+            Client client = new Client();
+            synchronized (_opened) {
+                _opened.add(client);
+            }
+
+            return client;
+        });
+    }
+
+    /**
+     * Closes the clients of a pool whose threads have finished.
+     */
+    private static void closeClients(List<Client> _opened) {
+        synchronized (_opened) {
+            for (Client client : _opened) client.close();
+        }
+    }
+
+    private static Operation chooseOperation() {
+        double choice = ThreadLocalRandom.current().nextDouble() * mixWeights[mixWeights.length - 1];
+
+        for (int i = 0; i < mixWeights.length; i++)
+            if (choice < mixWeights[i]) return mixOperations[i];
+
+        return mixOperations[mixOperations.length - 1];
+    }
+
+    /**
+     * Parses "op:weight,..." into the operations and their cumulative weights.
+     */
+    private static void parseMix(String _mix) {
+        String[] entries = _mix.split(",");
+        mixOperations = new Operation[entries.length];
+        mixWeights = new double[entries.length];
+
+        double total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] entry = entries[i].split(":");
+            if (entry.length != 2) throw new IllegalArgumentException("invalid mix entry \"" + entries[i] + "\" (must be op:weight)");
+
+            mixOperations[i] = Operation.valueOf(entry[0].toUpperCase());
+            total += Double.parseDouble(entry[1]);
+            mixWeights[i] = total;
+        }
+
+        if (!(total > 0)) throw new IllegalArgumentException("invalid mix (weights must add up to >0)");
+    }
+
+
+
+    //// CLIENT ////
+
+    /**
+     * Connection to the controller that performs operations one at a time.
+     */
+    private static class Client {
+        private Socket socket;
+        private BufferedReader in;
+        private PrintWriter out;
+
+        private final byte[] buffer = new byte[CONTENT_CHUNK];
+
+        /**
+         * Performs an operation, connecting first if needed.
+         *
+         * Returns OK, or ERROR if the controller or a dstore responded with an error.
+         * @throws IOException if a connection failed or timed out.
+         */
+        private int perform(Operation _operation, String _fileName, long _fileSize) throws IOException {
+            if (socket == null) connect();
+
+            switch (_operation) {
+                case STORE: return store(_fileName, _fileSize);
+                case LOAD: return load(_fileName);
+                case LIST: return list();
+                default: return remove(_fileName);
+            }
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket(host, cport);
+            socket.setSoTimeout(timeout);
+
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        private void close() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+
+            socket = null;
+        }
+
+        private String request(String _packet) throws IOException {
+            out.println(_packet);
+
+            String response = in.readLine();
+            if (response == null) throw new IOException("controller closed the connection");
+
+            return response;
+        }
+
+        private int store(String _fileName, long _fileSize) throws IOException {
+            String response = request("STORE " + _fileName + " " + _fileSize);
+            if (!response.startsWith("STORE_TO")) return ERROR;
+
+            String[] ports = response.split(" ");
+            for (int i = 1; i < ports.length; i++) storeTo(Integer.parseInt(ports[i]), _fileName, _fileSize);
+
+            String completion = in.readLine();
+            if (completion == null) throw new IOException("controller closed the connection");
+
+            return completion.equals("STORE_COMPLETE") ? OK : ERROR;
+        }
+
+        private void storeTo(int _dstorePort, String _fileName, long _fileSize) throws IOException {
+            try (Socket dstore = new Socket(host, _dstorePort)) {
+                dstore.setSoTimeout(timeout);
+
+                new PrintWriter(dstore.getOutputStream(), true).println("STORE " + _fileName + " " + _fileSize);
+                if (!"ACK".equals(new BufferedReader(new InputStreamReader(dstore.getInputStream())).readLine()))
+                    throw new IOException("dstore " + _dstorePort + " didn't acknowledge the store");
+
+                OutputStream dstoreOut = dstore.getOutputStream();
+                for (long sent = 0; sent < _fileSize; sent += CONTENT_CHUNK)
+                    dstoreOut.write(content, 0, (int) Math.min(CONTENT_CHUNK, _fileSize - sent));
+                dstoreOut.flush();
+            }
+        }
+
+        /**
+         * Loads the file, trying the other dstores that hold it if one fails.
+         */
+        private int load(String _fileName) throws IOException {
+            String response = request("LOAD " + _fileName);
+
+            while (response.startsWith("LOAD_FROM")) {
+                String[] arguments = response.split(" ");
+                if (loadFrom(Integer.parseInt(arguments[1]), _fileName, Long.parseLong(arguments[2]))) return OK;
+
+                response = request("RELOAD " + _fileName);
+            }
+
+            return ERROR;
+        }
+
+        /**
+         * Returns true if the whole file was received.
+         */
+        private boolean loadFrom(int _dstorePort, String _fileName, long _fileSize) {
+            try (Socket dstore = new Socket(host, _dstorePort)) {
+                dstore.setSoTimeout(timeout);
+
+                new PrintWriter(dstore.getOutputStream(), true).println("LOAD_DATA " + _fileName);
+
+                InputStream dstoreIn = dstore.getInputStream();
+                long received = 0;
+                int bytesRead;
+                while (received < _fileSize && (bytesRead = dstoreIn.read(buffer)) >= 0) received += bytesRead;
+
+                return received == _fileSize;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private int list() throws IOException {
+            return request("LIST").startsWith("LIST") ? OK : ERROR;
+        }
+
+        private int remove(String _fileName) throws IOException {
+            return request("REMOVE " + _fileName).equals("REMOVE_COMPLETE") ? OK : ERROR;
+        }
+    }
+
+
+
+    //// WORKLOAD ////
+
+    /**
+     * File names chosen with Zipf-distributed popularity: the name of rank k
+     * is chosen with probability proportional to 1 / k^s.
+     */
+    private static class FileNames {
+        private final String[] names;
+
+        /**
+         * Cumulative probability of each rank.
+         */
+        private final double[] cumulative;
+
+        private FileNames(int _count, double _skew) {
+            if (!(_count > 0 && _skew >= 0)) throw new IllegalArgumentException("invalid keys or zipf (must be >0 and >=0)");
+
+            names = new String[_count];
+            cumulative = new double[_count];
+
+            double total = 0;
+            for (int i = 0; i < _count; i++) {
+                names[i] = prefix + i;
+                total += 1 / Math.pow(i + 1, _skew);
+                cumulative[i] = total;
+            }
+            for (int i = 0; i < _count; i++) cumulative[i] /= total;
+        }
+
+        private String next() {
+            int rank = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+            if (rank < 0) rank = -rank - 1;
+
+            return names[Math.min(rank, names.length - 1)];
+        }
+
+        private String get(int _rank) { return names[_rank]; }
+
+        private int size() { return names.length; }
+    }
+
+    /**
+     * File sizes from a fixed size, a uniform range or a log-normal distribution.
+     */
+    private static class FileSizes {
+        private final long min;
+        private final long max;
+
+        // Log-normal parameters, or a median of 0 if not log-normal.
+        private final double median;
+        private final double sigma;
+
+        private FileSizes(String _spec) {
+            try {
+                if (_spec.startsWith("lognormal:")) {
+                    String[] parameters = _spec.split(":");
+                    median = parseSize(parameters[1]);
+                    sigma = Double.parseDouble(parameters[2]);
+                    min = 0;
+                    max = 0;
+                } else {
+                    String[] range = _spec.split("-");
+                    min = parseSize(range[0]);
+                    max = range.length > 1 ? parseSize(range[1]) : min;
+                    median = 0;
+                    sigma = 0;
+                }
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("invalid size \"" + _spec + "\" (must be N, MIN-MAX or lognormal:MEDIAN:SIGMA)");
+            }
+
+            if (min < 0 || max < min) throw new IllegalArgumentException("invalid size range \"" + _spec + "\"");
+        }
+
+        private long next() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            if (median > 0) return Math.max(0, Math.round(median * Math.exp(sigma * random.nextGaussian())));
+            if (max == min) return min;
+
+            return min + random.nextLong(max - min + 1);
+        }
+
+        private static long parseSize(String _size) {
+            long unit = 1;
+            switch (_size.charAt(_size.length() - 1)) {
+                case 'K': unit = 1L << 10; break;
+                case 'M': unit = 1L << 20; break;
+                case 'G': unit = 1L << 30; break;
+            }
+
+            String number = unit == 1 ? _size : _size.substring(0, _size.length() - 1);
+            return Long.parseLong(number) * unit;
+        }
+    }
+
+
+
+    //// RESULTS ////
+
+    /**
+     * Latencies and outcomes of each type of operation.
+     */
+    private static class Results {
+        private final LatencyHistogram[] latencies;
+        private final LongAdder[] errors;
+        private final LongAdder[] failures;
+
+        private Results() {
+            int count = Operation.values().length;
+            latencies = new LatencyHistogram[count];
+            errors = new LongAdder[count];
+            failures = new LongAdder[count];
+
+            for (Operation operation : Operation.values()) {
+                latencies[operation.ordinal()] = new LatencyHistogram(operation.name().toLowerCase());
+                errors[operation.ordinal()] = new LongAdder();
+                failures[operation.ordinal()] = new LongAdder();
+            }
+        }
+
+        private void record(Operation _operation, long _latency, int _outcome) {
+            latencies[_operation.ordinal()].record(_latency);
+
+            if (_outcome == ERROR) errors[_operation.ordinal()].increment();
+            else if (_outcome == FAILED) failures[_operation.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Reports a line for each type of operation that completed.
+     */
+    private static void report(String _scope, double _elapsed, double _period, Results _results) {
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latency = _results.latencies[operation.ordinal()];
+            long count = latency.count();
+            if (count == 0) continue;
+
+            String[] names = { "scope", "elapsed_s", "operation", "count", "errors", "failures", "throughput_per_s",
+                "mean_ms", "p50_ms", "p90_ms", "p99_ms", "p999_ms", "max_ms" };
+            Object[] values = new Object[names.length];
+            values[0] = _scope;
+            values[1] = String.format(Locale.ROOT, "%.3f", _elapsed);
+            values[2] = latency.getName();
+            values[3] = count;
+            values[4] = _results.errors[operation.ordinal()].sum();
+            values[5] = _results.failures[operation.ordinal()].sum();
+            values[6] = String.format(Locale.ROOT, "%.1f", count / _period);
+            values[7] = milliseconds(latency.mean());
+            for (int i = 0; i < PERCENTILES.length; i++) values[8 + i] = milliseconds(latency.percentile(PERCENTILES[i]));
+            values[12] = milliseconds(latency.max());
+
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < names.length; i++) {
+                if (json) {
+                    line.append(i == 0 ? "{" : ",").append('"').append(names[i]).append("\":");
+                    line.append(i == 0 || i == 2 ? "\"" + values[i] + "\"" : values[i]);
+                } else {
+                    line.append(i == 0 ? "" : ",").append(values[i]);
+                }
+            }
+            if (json) line.append('}');
+
+            report.println(line);
+        }
+    }
+
+    private static String milliseconds(long _nanos) {
+        return String.format(Locale.ROOT, "%.3f", _nanos / 1e6);
+    }
+}
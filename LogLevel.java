@@ -0,0 +1,10 @@
+/**
+ * Lowest importance of message that is logged.
+ *
+ * INFO logs every message, ERROR only errors and failures, and OFF nothing.
+ */
+public enum LogLevel {
+    INFO,
+    ERROR,
+    OFF
+}
@@ -0,0 +1,271 @@
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log lines to stdout or a rotating file on its own thread.
+ *
+ * Lines are formatted straight into the slots of a ring buffer, whose
+ * string builders are reused, so logging a line doesn't allocate once the
+ * builders have grown. The writer thread encodes the lines into a byte
+ * buffer and writes it out whenever the ring buffer is empty or the byte
+ * buffer is full. Threads wait for space if the ring buffer fills up.
+ */
+public class LogWriter extends Thread {
+
+    private static final int LINE_CAPACITY = 256;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Line in the ring buffer.
+     */
+    private static class Slot {
+        private final StringBuilder line = new StringBuilder(LINE_CAPACITY);
+
+        /**
+         * Sequence number of the line held, set once it is written.
+         */
+        private volatile long sequence = -1;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+
+    /**
+     * Sequence number of the next line to claim.
+     */
+    private final AtomicLong claimed;
+
+    /**
+     * Sequence number of the next line to write out. Slots before it are free.
+     */
+    private volatile long written;
+
+    private volatile boolean sleeping;
+    private volatile boolean closing;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Log file, or null if writing to stdout.
+     */
+    private final File file;
+    private final long maxFileSize;
+    private final int keptFiles;
+
+    private FileChannel channel;
+    private long fileSize;
+
+    /**
+     * Creates a writer to stdout.
+     */
+    public LogWriter(int _capacity) {
+        this(_capacity, null, 0, 0);
+    }
+
+    /**
+     * Creates a writer to a file, which is rotated once it reaches a size. Rotated files
+     * get the suffixes .1 (newest) to .N (oldest), and older ones are deleted.
+     */
+    public LogWriter(int _capacity, File _file, long _maxFileSize, int _keptFiles) {
+        super("log");
+        setDaemon(true);
+
+        int capacity = Integer.highestOneBit(Math.max(_capacity - 1, 1)) << 1;
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) slots[i] = new Slot();
+        mask = capacity - 1;
+
+        claimed = new AtomicLong();
+        written = 0;
+
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        file = _file;
+        maxFileSize = _maxFileSize;
+        keptFiles = _keptFiles;
+    }
+
+    /**
+     * Opens the output.
+     */
+    public void open() throws IOException {
+        if (file == null) {
+            channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        } else {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileSize = channel.size();
+        }
+
+        start();
+    }
+
+
+
+    //// WRITING LINES ////
+
+    /**
+     * Claims the next slot, waiting for one to be free.
+     *
+     * Returns the slot's sequence number, or -1 if the writer is closed. The line must be
+     * formatted into line(sequence) and then published, even if formatting it fails.
+     */
+    public long claim() {
+        if (closing) return -1;
+
+        long sequence = claimed.getAndIncrement();
+
+        while (sequence - written >= slots.length && isAlive()) {
+            LockSupport.unpark(this);
+            LockSupport.parkNanos(50000);
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Returns the empty line builder of a claimed slot.
+     */
+    public StringBuilder line(long _sequence) {
+        StringBuilder line = slots[(int) (_sequence & mask)].line;
+        line.setLength(0);
+
+        return line;
+    }
+
+    /**
+     * Hands a claimed slot to the writer thread.
+     */
+    public void publish(long _sequence) {
+        slots[(int) (_sequence & mask)].sequence = _sequence;
+
+        if (sleeping) LockSupport.unpark(this);
+    }
+
+    /**
+     * Returns the number of lines waiting to be written out.
+     */
+    public long pending() {
+        return claimed.get() - written;
+    }
+
+    /**
+     * Writes out the lines logged so far, and stops the writer thread.
+     */
+    public void close() {
+        closing = true;
+        LockSupport.unpark(this);
+
+        try {
+            join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long sequence = written;
+            Slot slot = slots[(int) (sequence & mask)];
+
+            if (slot.sequence != sequence) {
+                flush();
+
+                if (closing && claimed.get() == sequence) break;
+
+                // Producers unpark the thread if they see it sleeping, so check once more after setting it.
+                sleeping = true;
+                if (slot.sequence != sequence) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                sleeping = false;
+
+                continue;
+            }
+
+            encode(slot.line);
+            if (slot.line.capacity() > 16 * LINE_CAPACITY) {
+                slot.line.setLength(0);
+                slot.line.trimToSize();
+            }
+
+            written = sequence + 1;
+        }
+
+        try {
+            if (file != null) channel.close();
+        } catch (IOException e) {
+            // Nothing left to log the error to.
+        }
+    }
+
+    /**
+     * Encodes a line into the buffer as UTF-8, followed by a new line.
+     */
+    private void encode(StringBuilder _line) {
+        int length = _line.length();
+
+        for (int i = 0; i < length; i++) {
+            if (buffer.remaining() < 3) flush();
+
+            char c = _line.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+
+        if (!buffer.hasRemaining()) flush();
+        buffer.put((byte) '\n');
+    }
+
+    private void flush() {
+        if (buffer.position() == 0) return;
+
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) fileSize += channel.write(buffer);
+        } catch (IOException e) {
+            System.err.println("failed to write log: " + e.getMessage());
+        }
+        buffer.clear();
+
+        if (file != null && fileSize >= maxFileSize) rotate();
+    }
+
+
+
+    //// ROTATING FILES ////
+
+    private void rotate() {
+        try {
+            channel.close();
+
+            new File(file.getPath() + "." + keptFiles).delete();
+            for (int i = keptFiles - 1; i > 0; i--)
+                new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+
+            if (keptFiles > 0) file.renameTo(new File(file.getPath() + ".1"));
+            else file.delete();
+
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            fileSize = 0;
+        } catch (IOException e) {
+            System.err.println("failed to rotate log: " + e.getMessage());
+        }
+    }
+}
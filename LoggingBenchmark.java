@@ -0,0 +1,146 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many packets per second can be logged with the old, synchronous
+ * logging and with Message, and how many bytes each packet allocates.
+ *
+ * Usage: java LoggingBenchmark [threads] [packets per thread]
+ * e.g.   java LoggingBenchmark 4 200000
+ *
+ * Each packet logs what the controller logs for a STORE packet (processing,
+ * request, response, processed). Both loggers write to a temporary file. The
+ * new logger is also measured with logging switched off.
+ */
+public class LoggingBenchmark {
+
+    /**
+     * The logging Message replaced: each line is built by concatenation,
+     * with a new formatter, and printed synchronously.
+     */
+    private static class OldMessage {
+        private static final String TEXT_RESET = "\u001B[0m";
+        private static final String TEXT_GREEN = "\u001B[32m";
+        private static final String TEXT_BLUE = "\u001B[34m";
+
+        private static void info(String _message, int _indent) {
+            message("[INFO] " + _message, _indent);
+        }
+
+        private static void process(String _message, int _indent) {
+            message(TEXT_BLUE + "[PROCESS] " + _message + " ... ", _indent);
+        }
+
+        private static void success(String _message, int _indent) {
+            message(TEXT_GREEN +  "[SUCCESS] " + _message, _indent);
+        }
+
+        private static void message(String _message, int _indent) {
+            String fullMessage = "";
+
+            fullMessage += LocalDateTime.now().format(DateTimeFormatter.ofPattern("H:m:s")) + "\t\t";
+            fullMessage += "<" + Thread.currentThread().getName() + ">\t\t";
+
+            if (_indent > 0) {
+                for (int i = 0; i < _indent; i++) fullMessage += "\t";
+                fullMessage += "-> ";
+            }
+
+            fullMessage += _message + TEXT_RESET;
+
+            System.out.println(fullMessage);
+        }
+    }
+
+    private static final int PACKET_VARIETY = 1024;
+
+    public static void main(String[] args) throws Exception {
+        int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int packetsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        String[] packets = new String[PACKET_VARIETY];
+        String[] responses = new String[PACKET_VARIETY];
+        for (int i = 0; i < PACKET_VARIETY; i++) {
+            packets[i] = "STORE file" + i + ".txt " + (i * 37);
+            responses[i] = "STORE_TO " + (4000 + i % 8) + " " + (4001 + i % 8);
+        }
+
+        PrintStream results = System.out;
+        File logFolder = Files.createTempDirectory("logging").toFile();
+
+        System.setOut(new PrintStream(new FileOutputStream(new File(logFolder, "old.log")), false));
+        Message.logToFile(new File(logFolder, "new.log"), Long.MAX_VALUE, 0);
+
+        results.println("logger,threads,packets,packets_per_s,allocated_bytes_per_packet");
+        for (String logger : new String[] { "old", "new", "new-off" }) {
+            Message.setLevel(logger.equals("new-off") ? LogLevel.OFF : LogLevel.INFO);
+
+            // Warm up.
+            run(logger, threadCount, packetsPerThread / 4, packets, responses);
+
+            long[] result = run(logger, threadCount, packetsPerThread, packets, responses);
+            long packetCount = (long) threadCount * packetsPerThread;
+
+            results.println(logger + "," + threadCount + "," + packetCount + ","
+                + String.format("%.0f", packetCount / (result[0] / 1e9)) + "," + (result[1] / packetCount));
+        }
+
+        System.out.flush();
+        for (File file : logFolder.listFiles()) file.delete();
+        logFolder.delete();
+    }
+
+    /**
+     * Logs the packets on a number of threads.
+     *
+     * Returns the elapsed nanoseconds and the bytes allocated by the threads.
+     */
+    private static long[] run(String _logger, int _threadCount, int _packetsPerThread,
+            String[] _packets, String[] _responses) throws InterruptedException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AtomicLong allocated = new AtomicLong();
+
+        Thread[] workers = new Thread[_threadCount];
+        for (int t = 0; t < _threadCount; t++) {
+            int offset = t;
+            workers[t] = new Thread(() -> {
+                long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+
+                for (int i = 0; i < _packetsPerThread; i++) {
+                    int packet = (i + offset) & (PACKET_VARIETY - 1);
+                    if (_logger.equals("old")) logOld(_packets[packet], _responses[packet]);
+                    else logNew(_packets[packet], _responses[packet]);
+                }
+
+                allocated.addAndGet(threads.getCurrentThreadAllocatedBytes() - allocatedBefore);
+            }, "worker-" + t);
+        }
+
+        long startTime = System.nanoTime();
+        for (Thread worker : workers) worker.start();
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - startTime;
+
+        return new long[] { elapsed, allocated.get() };
+    }
+
+    private static void logOld(String _packet, String _response) {
+        OldMessage.process("processing next packet: " + _packet, 0);
+        OldMessage.info("STORE request", 1);
+        OldMessage.info("sent response: " + _response, 1);
+        OldMessage.success("packet processed correctly", 0);
+    }
+
+    private static void logNew(String _packet, String _response) {
+        Message.process("processing next packet: ", _packet, 0);
+        Message.info("STORE request", 1);
+        Message.info("sent response: ", _response, 1);
+        Message.success("packet processed correctly", 0);
+    }
+}
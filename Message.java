@@ -1,6 +1,16 @@
-import java.time.LocalDateTime;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 
+/**
+ * Logs messages through an asynchronous writer (see LogWriter).
+ *
+ * Messages below the current level return before doing anything, so they
+ * don't allocate. Messages built from a changing value should pass the value
+ * as an argument rather than concatenating it, so it is only turned into
+ * text if the message is logged.
+ */
 public class Message {
     private static final String TEXT_RESET = "\u001B[0m";
     // private static final String TEXT_BLACK = "\u001B[30m";
@@ -12,39 +22,223 @@ public class Message {
     // private static final String TEXT_CYAN = "\u001B[36m";
     // private static final String TEXT_WHITE = "\u001B[37m";
 
+    private static final String INFO = "[INFO] ";
+    private static final String PROCESS = TEXT_BLUE + "[PROCESS] ";
+    private static final String ERROR = TEXT_YELLOW + "[ERROR] ";
+    private static final String SUCCESS = TEXT_GREEN + "[SUCCESS] ";
+    private static final String FAILED = TEXT_RED + "[FAILED] ";
+
+    private static final int RING_CAPACITY = 8192;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("H:m:s");
+
+    /**
+     * Formatted time of a second, reformatted when the second changes.
+     */
+    private static class CachedTime {
+        private final long second;
+        private final String text;
+
+        private CachedTime(long _second) {
+            second = _second;
+            text = LocalTime.now().format(TIME_FORMAT);
+        }
+    }
+
+    private static volatile LogLevel level = LogLevel.INFO;
+    private static volatile LogWriter writer;
+    private static volatile CachedTime time = new CachedTime(System.currentTimeMillis() / 1000);
+
+    static {
+        writer = new LogWriter(RING_CAPACITY);
+        try {
+            writer.open();
+        } catch (IOException e) {
+            System.err.println("failed to open stdout for logging: " + e.getMessage());
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> writer.close(), "log-flush"));
+    }
+
+
+
+    //// CONFIGURATION ////
+
+    public static LogLevel getLevel() { return level; }
+
+    /**
+     * Changes which messages are logged. Can be called at any time.
+     */
+    public static void setLevel(LogLevel _level) { level = _level; }
+
+    /**
+     * Changes which messages are logged, from a level's name (info, error or off).
+     *
+     * @throws IllegalArgumentException if the name isn't a level.
+     */
+    public static void setLevel(String _level) throws IllegalArgumentException {
+        try {
+            setLevel(LogLevel.valueOf(_level.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid log level (must be info, error or off)");
+        }
+    }
+
+    /**
+     * Returns the number of lines waiting to be written out.
+     */
+    public static long getPendingLines() { return writer.pending(); }
+
+    public static boolean isEnabled(LogLevel _level) {
+        return _level.compareTo(level) >= 0;
+    }
+
+    /**
+     * Logs to a file instead of stdout, keeping up to the given number
+     * of older files once the file reaches the maximum size.
+     */
+    public static void logToFile(File _file, long _maxFileSize, int _keptFiles) throws IOException {
+        LogWriter fileWriter = new LogWriter(RING_CAPACITY, _file, _maxFileSize, _keptFiles);
+        fileWriter.open();
+
+        LogWriter previousWriter = writer;
+        writer = fileWriter;
+        previousWriter.close();
+    }
+
+    /**
+     * Applies the logging options: log (level, info by default), logfile (path, logs to stdout if
+     * not given), logsize (megabytes before rotating) and logfiles (older files kept).
+     *
+     * @throws IllegalArgumentException if an option is invalid or the file can't be opened.
+     */
+    public static void setup(Options _options) throws IllegalArgumentException {
+        if (_options.has("log")) setLevel(_options.get("log", ""));
+
+        if (!_options.has("logfile")) return;
+
+        int maxFileSize = _options.getInt("logsize", 64);
+        int keptFiles = _options.getInt("logfiles", 5);
+        if (!(maxFileSize > 0 && keptFiles >= 0))
+            throw new IllegalArgumentException("invalid log size or file count (must be >0 and >=0)");
+
+        try {
+            logToFile(new File(_options.get("logfile", "")), maxFileSize * 1024L * 1024L, keptFiles);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("failed to open log file: " + e.getMessage());
+        }
+    }
+
+
+
+    //// MESSAGES ////
+
     public static void info(String _message, int _indent) {
-        message("[INFO] " + _message, _indent);
+        if (isEnabled(LogLevel.INFO)) message(INFO, _message, null, "", _indent);
+    }
+
+    /**
+     * Logs the message followed by the argument.
+     */
+    public static void info(String _message, Object _argument, int _indent) {
+        if (isEnabled(LogLevel.INFO)) message(INFO, _message, _argument, "", _indent);
+    }
+
+    /**
+     * Logs the message followed by a number and its unit.
+     */
+    public static void info(String _message, long _number, String _unit, int _indent) {
+        if (isEnabled(LogLevel.INFO)) message(INFO, _message, _number, _unit, _indent);
     }
 
     public static void process(String _message, int _indent) {
-        message(TEXT_BLUE + "[PROCESS] " + _message + " ... ", _indent);
+        if (isEnabled(LogLevel.INFO)) message(PROCESS, _message, null, " ... ", _indent);
+    }
+
+    public static void process(String _message, Object _argument, int _indent) {
+        if (isEnabled(LogLevel.INFO)) message(PROCESS, _message, _argument, " ... ", _indent);
     }
 
     public static void error(String _message, int _indent) {
-        message(TEXT_YELLOW + "[ERROR] " + _message, _indent);
+        if (isEnabled(LogLevel.ERROR)) message(ERROR, _message, null, "", _indent);
+    }
+
+    public static void error(String _message, Object _argument, int _indent) {
+        if (isEnabled(LogLevel.ERROR)) message(ERROR, _message, _argument, "", _indent);
     }
 
     public static void success(String _message, int _indent) {
-        message(TEXT_GREEN +  "[SUCCESS] " + _message, _indent);
+        if (isEnabled(LogLevel.INFO)) message(SUCCESS, _message, null, "", _indent);
+    }
+
+    public static void success(String _message, Object _argument, int _indent) {
+        if (isEnabled(LogLevel.INFO)) message(SUCCESS, _message, _argument, "", _indent);
     }
 
     public static void failed(String _message, int _indent) {
-        message(TEXT_RED + "[FAILED] " + _message, _indent);
+        if (isEnabled(LogLevel.ERROR)) message(FAILED, _message, null, "", _indent);
+    }
+
+    public static void failed(String _message, Object _argument, int _indent) {
+        if (isEnabled(LogLevel.ERROR)) message(FAILED, _message, _argument, "", _indent);
     }
 
-    private static void message(String _message, int _indent) {
-        String fullMessage = "";
 
-        fullMessage += LocalDateTime.now().format(DateTimeFormatter.ofPattern("H:m:s")) + "\t\t";
-        fullMessage += "<" + Thread.currentThread().getName() + ">\t\t";
+
+    //// FORMATTING ////
+
+    private static void message(String _tag, String _message, Object _argument, String _suffix, int _indent) {
+        LogWriter lineWriter = writer;
+        long sequence = lineWriter.claim();
+        if (sequence < 0) return;
+
+        try {
+            StringBuilder line = startLine(lineWriter.line(sequence), _tag, _indent);
+            line.append(_message);
+            if (_argument != null) line.append(_argument);
+            line.append(_suffix).append(TEXT_RESET);
+        } finally {
+            lineWriter.publish(sequence);
+        }
+    }
+
+    private static void message(String _tag, String _message, long _number, String _suffix, int _indent) {
+        LogWriter lineWriter = writer;
+        long sequence = lineWriter.claim();
+        if (sequence < 0) return;
+
+        try {
+            StringBuilder line = startLine(lineWriter.line(sequence), _tag, _indent);
+            line.append(_message).append(_number).append(_suffix).append(TEXT_RESET);
+        } finally {
+            lineWriter.publish(sequence);
+        }
+    }
+
+    /**
+     * Appends the time, thread name, indent and tag that start every line.
+     */
+    private static StringBuilder startLine(StringBuilder _line, String _tag, int _indent) {
+        _line.append(currentTime()).append("\t\t");
+        _line.append('<').append(Thread.currentThread().getName()).append(">\t\t");
 
         if (_indent > 0) {
-            for (int i = 0; i < _indent; i++) fullMessage += "\t";
-            fullMessage += "-> ";
+            for (int i = 0; i < _indent; i++) _line.append('\t');
+            _line.append("-> ");
         }
 
-        fullMessage += _message + TEXT_RESET;
+        return _line.append(_tag);
+    }
+
+    private static String currentTime() {
+        long second = System.currentTimeMillis() / 1000;
+
+        CachedTime cachedTime = time;
+        if (cachedTime.second != second) {
+            cachedTime = new CachedTime(second);
+            time = cachedTime;
+        }
 
-        System.out.println(fullMessage);
+        return cachedTime.text;
     }
 }
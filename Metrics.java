@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters and gauges of this process, written in the Prometheus text format.
+ *
+ * Metrics are registered once, e.g. in a static field, and updated directly.
+ * Registering a metric again returns the same one, so classes can share it.
+ * Counters and gauges can also be read from a supplier when scraped. The
+ * latency histograms (see LatencyStats) are written as the summary
+ * dfs_latency_seconds.
+ */
+public class Metrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+    /**
+     * Metrics with the same name, each with its own labels.
+     */
+    private static class Family {
+        private final String type;
+        private final String help;
+
+        /**
+         * Metrics by labels, e.g. "operation=\"store\"", or "" for no labels. 
+         * Each is a LongAdder, an AtomicLong or a LongSupplier.
+         */
+        private final LinkedHashMap<String, Object> values;
+
+        /**
+         * Values by labels computed together when scraped, e.g. one for each dstore.
+         */
+        private Supplier<Map<String, Long>> labelledValues;
+
+        private Family(String _type, String _help) {
+            type = _type;
+            help = _help;
+            values = new LinkedHashMap<String, Object>();
+        }
+    }
+
+    private static final LinkedHashMap<String, Family> families = new LinkedHashMap<String, Family>();
+
+
+
+    //// REGISTERING ////
+
+    /**
+     * Returns the counter with the name and labels. The name should end with _total.
+     */
+    public static LongAdder counter(String _name, String _labels, String _help) {
+        return (LongAdder) register(_name, "counter", _labels, _help, new LongAdder());
+    }
+
+    /**
+     * Registers a counter that is read when scraped.
+     */
+    public static void counter(String _name, String _labels, String _help, LongSupplier _value) {
+        register(_name, "counter", _labels, _help, _value);
+    }
+
+    /**
+     * Returns the gauge with the name and labels, which is set or changed by the caller.
+     */
+    public static AtomicLong gauge(String _name, String _labels, String _help) {
+        return (AtomicLong) register(_name, "gauge", _labels, _help, new AtomicLong());
+    }
+
+    /**
+     * Registers a gauge that is read when scraped.
+     */
+    public static void gauge(String _name, String _labels, String _help, LongSupplier _value) {
+        register(_name, "gauge", _labels, _help, _value);
+    }
+
+    /**
+     * Registers gauges that are read together when scraped, as values by their labels.
+     */
+    public static synchronized void gauges(String _name, String _help, Supplier<Map<String, Long>> _values) {
+        families.computeIfAbsent(_name, name -> new Family("gauge", _help)).labelledValues = _values;
+    }
+
+    /**
+     * Returns the metric already registered with the name and labels, or registers the new one.
+     * Suppliers replace the one registered before.
+     */
+    private static synchronized Object register(String _name, String _type, String _labels, String _help, Object _metric) {
+        Family family = families.computeIfAbsent(_name, name -> new Family(_type, _help));
+
+        if (_metric instanceof LongSupplier) {
+            family.values.put(_labels, _metric);
+            return _metric;
+        }
+
+        return family.values.computeIfAbsent(_labels, labels -> _metric);
+    }
+
+    private static long read(Object _metric) {
+        if (_metric instanceof LongAdder) return ((LongAdder) _metric).sum();
+        if (_metric instanceof AtomicLong) return ((AtomicLong) _metric).get();
+
+        return ((LongSupplier) _metric).getAsLong();
+    }
+
+
+
+    //// SCRAPING ////
+
+    /**
+     * Returns every metric in the Prometheus text format.
+     */
+    public static synchronized String render() {
+        StringBuilder text = new StringBuilder(4096);
+
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+
+            List<Map.Entry<String, Long>> samples = new ArrayList<Map.Entry<String, Long>>();
+            family.values.forEach((labels, metric) -> samples.add(Map.entry(labels, read(metric))));
+            if (family.labelledValues != null) samples.addAll(family.labelledValues.get().entrySet());
+
+            text.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Long> sample : samples) sample(text, name, sample.getKey(), sample.getValue());
+        }
+
+        renderLatencies(text);
+
+        return text.toString();
+    }
+
+    private static void renderLatencies(StringBuilder _text) {
+        String name = "dfs_latency_seconds";
+
+        _text.append("# HELP ").append(name).append(" Latency of operations and their phases.\n");
+        _text.append("# TYPE ").append(name).append(" summary\n");
+
+        for (LatencyHistogram histogram : LatencyStats.getHistograms()) {
+            String operation = "operation=\"" + histogram.getName() + "\"";
+
+            for (double quantile : QUANTILES)
+                sample(_text, name, operation + ",quantile=\"" + quantile + "\"", histogram.percentile(quantile) / 1e9);
+
+            sample(_text, name + "_sum", operation, histogram.sum() / 1e9);
+            sample(_text, name + "_count", operation, histogram.count());
+        }
+    }
+
+    private static void sample(StringBuilder _text, String _name, String _labels, Object _value) {
+        _text.append(_name);
+        if (!_labels.isEmpty()) _text.append('{').append(_labels).append('}');
+        _text.append(' ').append(_value).append('\n');
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.HashMap;
+
+/**
+ * Optional "name=value" arguments that follow the required arguments.
+ */
+public class Options {
+    private HashMap<String, String> values;
+
+    public Options(String[] _args, int _firstOption) throws IllegalArgumentException {
+        values = new HashMap<String, String>();
+
+        for (int i = _firstOption; i < _args.length; i++) {
+            String[] option = _args[i].split("=", 2);
+
+            if (option.length != 2 || option[0].isEmpty())
+                throw new IllegalArgumentException("invalid option \"" + _args[i] + "\" (must be name=value)");
+
+            values.put(option[0], option[1]);
+        }
+    }
+
+    public boolean has(String _name) { return values.containsKey(_name); }
+
+    public String get(String _name, String _default) { return values.getOrDefault(_name, _default); }
+
+    /**
+     * Returns the option as an integer.
+     * 
+     * @throws IllegalArgumentException if the option isn't an integer.
+     */
+    public int getInt(String _name, int _default) throws IllegalArgumentException {
+        if (!values.containsKey(_name)) return _default;
+
+        try {
+            return Integer.valueOf(values.get(_name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid " + _name + " (must be integer)");
+        }
+    }
+}
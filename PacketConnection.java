@@ -0,0 +1,23 @@
+import java.io.IOException;
+
+/**
+ * Line based connection that packets are read from and written to.
+ */
+public interface PacketConnection {
+
+    /**
+     * Returns the next packet, or null if the connection has been closed.
+     */
+    public String readLine() throws IOException;
+
+    /**
+     * Sends a packet to the connected node.
+     */
+    public void writeLine(String _packet);
+
+    public boolean isConnected();
+
+    public void close();
+
+    public String getAddress();
+}
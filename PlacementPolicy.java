@@ -0,0 +1,12 @@
+import java.util.List;
+
+/**
+ * Chooses which dstores a new file is stored on.
+ */
+public interface PlacementPolicy {
+
+    /**
+     * Returns up to _count dstores to store the file on.
+     */
+    public List<ClientDstoreListener> choose(String _fileName, List<ClientDstoreListener> _dstores, int _count);
+}
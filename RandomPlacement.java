@@ -0,0 +1,18 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Places files on randomly chosen dstores.
+ */
+public class RandomPlacement implements PlacementPolicy {
+
+    @Override
+    public List<ClientDstoreListener> choose(String _fileName, List<ClientDstoreListener> _dstores, int _count) {
+        List<ClientDstoreListener> candidates = new ArrayList<ClientDstoreListener>(_dstores);
+
+        Collections.shuffle(candidates);
+
+        return candidates.subList(0, Math.min(_count, candidates.size()));
+    }
+}
@@ -1,44 +1,67 @@
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
-import java.util.Set;
-import java.util.function.Predicate;
-
+import java.util.List;
+
+/**
+ * Plans how files are moved between dstores to rebalance them.
+ * 
+ * File names are interned to int IDs, and the files on each store are kept 
+ * in bitsets indexed by file ID, so the plan doesn't box integers or allocate 
+ * collections per file. The least and most loaded stores are kept in heaps.
+ */
 public class RebalanceAlgorithm {
 
     private static int storeCount;
 
-    // Current set of files stored on each dstore.
-    private static LinkedList<Set<String>> currentFileDistribution;
+    // Set once every file listing has been added.
+    private static boolean listingFinished;
+
+    // Maps file names to file IDs and back.
+    private static FileNameTable fileNames;
+
+    // Files (IDs) to remove from every store instead of replicating.
+    private static BitSet discardedFiles;
+
+    // IDs of the files listed by each dstore.
+    private static int[][] listings;
 
-    // New set of files stored on each dstore.
-    private static LinkedList<Set<String>> newFileDistribution;
+    // Current set of files (IDs) stored on each dstore.
+    private static BitSet[] currentFileDistribution;
 
-    // Maps files to the dstore number that they are stored in.
-    private static HashMap<String, LinkedList<Integer>> fileMap;
+    // New set of files (IDs) stored on each dstore.
+    private static BitSet[] newFileDistribution;
+
+    // Number of files on each dstore in the new distribution.
+    private static int[] newFileCounts;
+
+    // Dstore numbers that each file is currently stored in. 
+    // The holders of file f are fileHolders[holderOffsets[f]] to fileHolders[holderOffsets[f + 1] - 1].
+    private static int[] holderOffsets;
+    private static int[] fileHolders;
 
     // Maps dstore number to dstore port.
-    private static LinkedList<Integer> ports;
+    private static int[] ports;
 
     // Store the required changes to each file store to rebalance.
     private static StoreChanges[] distributionChanges;
 
+    // Files (IDs) that are added to or removed from any store.
+    private static BitSet movedFiles;
 
 
-    //// SET UP ////
 
-    public static void setup(int _storeCount) {
-        storeCount = _storeCount;
+    //// SET UP ////
 
-        currentFileDistribution = new LinkedList<Set<String>>();
-        newFileDistribution = new LinkedList<Set<String>>();
-        fileMap = new HashMap<String, LinkedList<Integer>>();
-        ports = new LinkedList<Integer>();
+    public static synchronized void setup() {
+        storeCount = 0;
+        listingFinished = false;
 
-        distributionChanges = new StoreChanges[storeCount];
-        for (int i = 0; i < storeCount; i++)
-            distributionChanges[i] = new StoreChanges();
+        fileNames = new FileNameTable();
+        discardedFiles = new BitSet();
+        listings = new int[4][];
+        ports = new int[4];
     }
 
 
@@ -48,32 +71,88 @@ public class RebalanceAlgorithm {
     /**
      * Add set of files from a dstore to the current file distribution.
      * 
-     * Each file is also added to the file map, which maps files to dstores.
+     * Listings can arrive from several dstores at once, so this is synchronized.
      * @throws RebalanceException
      */
-    public static void addFileStore(Integer port, String[] files) throws RebalanceException {
-        if (ports.stream().anyMatch(_port -> _port == port ))
-            throw new RebalanceException("store with the port " + port + " has already been added");
+    public static synchronized void addFileStore(Integer port, String[] files) throws RebalanceException {
+        if (listingFinished)
+            throw new RebalanceException("store with the port " + port + " listed its files too late");
 
-        if (currentFileDistribution.size() >= storeCount)
-            throw new RebalanceException("can't add more than " + storeCount + " file stores");
+        for (int i = 0; i < storeCount; i++)
+            if (ports[i] == port)
+                throw new RebalanceException("store with the port " + port + " has already been added");
 
-        ports.add(port);
+        if (storeCount == ports.length) {
+            ports = Arrays.copyOf(ports, storeCount * 2);
+            listings = Arrays.copyOf(listings, storeCount * 2);
+        }
 
-        Set<String> fileStore = new LinkedHashSet<String>();
+        int[] fileIds = new int[files.length];
+        for (int i = 0; i < files.length; i++) fileIds[i] = fileNames.intern(files[i]);
 
-        for (String file : files) {
-            fileStore.add(file);
+        ports[storeCount] = port;
+        listings[storeCount] = fileIds;
+        storeCount++;
+    }
+
+    /**
+     * Marks a file to be removed from every store that lists it, 
+     * e.g. a file whose store or remove didn't finish.
+     * @throws RebalanceException
+     */
+    public static synchronized void discardFile(String _file) throws RebalanceException {
+        if (listingFinished)
+            throw new RebalanceException("file " + _file + " was discarded too late");
+
+        discardedFiles.set(fileNames.intern(_file));
+    }
+
+    /**
+     * Stops accepting file listings.
+     * 
+     * Only the dstores that have listed their files are included in the new distribution.
+     */
+    public static synchronized void finishListing() {
+        listingFinished = true;
 
-            if (fileMap.get(file) == null)
-                fileMap.put(file, new LinkedList<Integer>());
+        int fileCount = fileNames.size();
 
-            fileMap.get(file).add(currentFileDistribution.size());
+        currentFileDistribution = new BitSet[storeCount];
+        for (int store = 0; store < storeCount; store++) {
+            currentFileDistribution[store] = new BitSet(fileCount);
+            for (int file : listings[store]) currentFileDistribution[store].set(file);
         }
 
-        currentFileDistribution.add(fileStore);
+        // Build the file to holders map from the distinct files on each store.
+        holderOffsets = new int[fileCount + 1];
+        for (int store = 0; store < storeCount; store++)
+            for (int file = currentFileDistribution[store].nextSetBit(0); file >= 0; file = currentFileDistribution[store].nextSetBit(file + 1))
+                holderOffsets[file + 1]++;
+
+        for (int file = 0; file < fileCount; file++) holderOffsets[file + 1] += holderOffsets[file];
+
+        fileHolders = new int[holderOffsets[fileCount]];
+        int[] nextHolder = Arrays.copyOf(holderOffsets, fileCount);
+        for (int store = 0; store < storeCount; store++)
+            for (int file = currentFileDistribution[store].nextSetBit(0); file >= 0; file = currentFileDistribution[store].nextSetBit(file + 1))
+                fileHolders[nextHolder[file]++] = store;
+
+        listings = null;
+
+        distributionChanges = new StoreChanges[storeCount];
+        for (int i = 0; i < storeCount; i++)
+            distributionChanges[i] = new StoreChanges();
     }
 
+    /**
+     * Returns the number of dstores included in the distribution.
+     */
+    public static int getStoreCount() { return storeCount; }
+
+    /**
+     * Returns the port of a dstore by its number.
+     */
+    public static int getPort(int _store) { return ports[_store]; }
 
 
 
@@ -84,52 +163,143 @@ public class RebalanceAlgorithm {
      * @throws RebalanceException
      */
     public static void calculate(int _replicationFactor) throws RebalanceException {
-        if (_replicationFactor > currentFileDistribution.size())
+        if (!listingFinished)
+            throw new RebalanceException("file stores are still being added");
+
+        if (_replicationFactor > storeCount)
             throw new RebalanceException("replication factor can't be greater than the number of file stores");
-        
-        if (storeCount != currentFileDistribution.size())
-            throw new RebalanceException("not enough file stores have been added");
 
-        String[] files = listFiles();
-        redistributeFiles(files, _replicationFactor);
+        redistributeFiles(_replicationFactor);
 
-        validateNewDistribution(files.length,  _replicationFactor);
+        validateNewDistribution(fileNames.size() - discardedFiles.cardinality(), _replicationFactor);
 
         calculateChanges();
     }
 
     /**
-     * Collects a list of all files distributed through out all dstores.
+     * Create a new distribution for the list files based on the replicaiton factor.
+     * 
+     * Starts from the current distribution and only moves the replicas needed 
+     * to give every file R replicas (discarded files none) and every store an allowed number of files.
      */
-    private static String[] listFiles() {
-        Set<String> fileSet = new LinkedHashSet<String>();
+    private static void redistributeFiles(int _replicationFactor) {
+        newFileDistribution = new BitSet[storeCount];
+        newFileCounts = new int[storeCount];
+        for (int store = 0; store < storeCount; store++) {
+            newFileDistribution[store] = (BitSet) currentFileDistribution[store].clone();
+            newFileCounts[store] = newFileDistribution[store].cardinality();
+        }
+
+        StoreHeap emptiestStores = new StoreHeap(newFileCounts, false);
+        StoreHeap fullestStores = new StoreHeap(newFileCounts, true);
+
+        for (int file = 0; file < fileNames.size(); file++) {
+            int replicaCount = holderOffsets[file + 1] - holderOffsets[file];
+            int targetCount = discardedFiles.get(file) ? 0 : _replicationFactor;
+
+            // Remove extra replicas from the stores with the most files.
+            while (replicaCount > targetCount) {
+                int fullest = -1;
+                for (int h = holderOffsets[file]; h < holderOffsets[file + 1]; h++) {
+                    int holder = fileHolders[h];
+                    if (!newFileDistribution[holder].get(file)) continue;
+                    if (fullest == -1 || newFileCounts[holder] > newFileCounts[fullest]) fullest = holder;
+                }
 
-        for (Set<String> dstoreFiles : currentFileDistribution)
-            for (String file : dstoreFiles)
-                fileSet.add(file);
+                moveFile(file, fullest, -1, emptiestStores, fullestStores);
+                replicaCount--;
+            }
 
-        String[] files = new String[fileSet.size()];
-        int i = 0;
-        for (String file : fileSet) {
-            files[i] = file;
-            i++;
+            // Add missing replicas to the stores with the least files that don't hold it.
+            while (replicaCount < targetCount) {
+                moveFile(file, -1, emptiestStoreWithout(file, emptiestStores), emptiestStores, fullestStores);
+                replicaCount++;
+            }
         }
 
-        return files;
+        balanceFileStores(fileNames.size() - discardedFiles.cardinality(), _replicationFactor, emptiestStores, fullestStores);
     }
 
     /**
-     * Create a new distribution for the list files based on the replicaiton factor.
+     * Moves files from the fullest store to the emptiest store until 
+     * every store holds an allowed number of files.
      */
-    private static void redistributeFiles(String[] _files, int _replicationFactor) {
-        for (int i = 0; i < currentFileDistribution.size(); i++)
-            newFileDistribution.add(new LinkedHashSet<String>());
+    private static void balanceFileStores(int _fileCount, int _replicationFactor, StoreHeap _emptiestStores, StoreHeap _fullestStores) {
+        int minFileCount = (int) Math.floor(((double) _replicationFactor * _fileCount) / storeCount);
+        int maxFileCount = (int) Math.ceil(((double) _replicationFactor * _fileCount) / storeCount);
 
-        for (String file : _files) {
-            for (int i = 0; i < _replicationFactor; i++) {
-                // Add the file to the file store with the least number of files.
-                newFileDistribution.stream().min(Comparator.comparingInt(Set::size)).get().add(file);
-            }
+        // Where to continue looking for a file to move in each store, so moved files aren't scanned again.
+        int[] scanPositions = new int[storeCount];
+
+        while (true) {
+            int fullest = _fullestStores.peek();
+            int emptiest = _emptiestStores.peek();
+
+            if (newFileCounts[fullest] <= maxFileCount && newFileCounts[emptiest] >= minFileCount) return;
+
+            // The fullest store holds more files than the emptiest, so it has one the emptiest doesn't.
+            BitSet fullestFiles = newFileDistribution[fullest];
+            BitSet emptiestFiles = newFileDistribution[emptiest];
+
+            int file = fullestFiles.nextSetBit(scanPositions[fullest]);
+            while (file < 0 || emptiestFiles.get(file)) 
+                file = fullestFiles.nextSetBit(file < 0 ? 0 : file + 1);
+
+            scanPositions[fullest] = file + 1;
+
+            moveFile(file, fullest, emptiest, _emptiestStores, _fullestStores);
+        }
+    }
+
+    /**
+     * Returns the store with the least files that doesn't hold the file.
+     * 
+     * Searches the heap from the top, so only the stores 
+     * holding the file and their children are looked at.
+     */
+    private static int emptiestStoreWithout(int _file, StoreHeap _emptiestStores) {
+        // Heap positions still to look at, at most two for each store holding the file.
+        int[] candidates = new int[2 * storeCount + 1];
+        int candidateCount = 0;
+        candidates[candidateCount++] = 0;
+
+        while (true) {
+            // Take the candidate with the fewest files.
+            int best = 0;
+            for (int i = 1; i < candidateCount; i++)
+                if (newFileCounts[_emptiestStores.get(candidates[i])] < newFileCounts[_emptiestStores.get(candidates[best])]) best = i;
+
+            int position = candidates[best];
+            candidates[best] = candidates[--candidateCount];
+
+            int store = _emptiestStores.get(position);
+            if (!newFileDistribution[store].get(_file)) return store;
+
+            if (2 * position + 1 < _emptiestStores.size()) candidates[candidateCount++] = 2 * position + 1;
+            if (2 * position + 2 < _emptiestStores.size()) candidates[candidateCount++] = 2 * position + 2;
+        }
+    }
+
+    /**
+     * Moves a file between stores in the new distribution.
+     * 
+     * A store of -1 means the file is only added or only removed.
+     */
+    private static void moveFile(int _file, int _from, int _to, StoreHeap _emptiestStores, StoreHeap _fullestStores) {
+        if (_from != -1) {
+            newFileDistribution[_from].clear(_file);
+            newFileCounts[_from]--;
+
+            _emptiestStores.update(_from);
+            _fullestStores.update(_from);
+        }
+
+        if (_to != -1) {
+            newFileDistribution[_to].set(_file);
+            newFileCounts[_to]++;
+
+            _emptiestStores.update(_to);
+            _fullestStores.update(_to);
         }
     }
 
@@ -137,20 +307,20 @@ public class RebalanceAlgorithm {
      * Valid that the files have been evenly distributed between the stores.
      */
     private static void validateNewDistribution(int _fileCount, int _replicationFactor) throws RebalanceException {
-        Predicate<Set<String>> invalidFileCount = s -> !validFileCount(s, _replicationFactor, _fileCount, currentFileDistribution.size());
-        if (newFileDistribution.stream().anyMatch(invalidFileCount))
-            throw new RebalanceException("invalid file count in file store");
+        for (int store = 0; store < storeCount; store++)
+            if (!validFileCount(newFileCounts[store], _replicationFactor, _fileCount, storeCount))
+                throw new RebalanceException("invalid file count in file store");
     }
 
     /**
      * Validate the number of files in a store is allowed.
      */
-    private static boolean validFileCount(Set<String> _fileStore, int _R, int _F, int _N) {
+    private static boolean validFileCount(int _storeFileCount, int _R, int _F, int _N) {
         int minFileCount = (int) Math.floor(((double)_R * _F) / _N);
         int maxFileCount = (int) Math.ceil(((double)_R * _F) / _N);
 
-        if (_fileStore.size() < minFileCount) return false;
-        if (_fileStore.size() > maxFileCount) return false;
+        if (_storeFileCount < minFileCount) return false;
+        if (_storeFileCount > maxFileCount) return false;
 
         return true;
     }
@@ -160,31 +330,38 @@ public class RebalanceAlgorithm {
      * each file store in the current file distribution.
      */
     private static void calculateChanges() {
+        // Number of files each store has been told to send.
+        int[] sendCounts = new int[storeCount];
+
+        movedFiles = new BitSet(fileNames.size());
 
         // For each file store in the file distribution.
-        for (int i = 0; i < currentFileDistribution.size(); i++) {
+        for (int i = 0; i < storeCount; i++) {
 
-            Set<String> currentFileStore = currentFileDistribution.get(i);
-            Set<String> newFileStore = newFileDistribution.get(i);
+            BitSet currentFileStore = currentFileDistribution[i];
+            BitSet newFileStore = newFileDistribution[i];
 
             // Calculate the files to remove from the file store.
-            Set<String> filesToRemove = new LinkedHashSet<String>();
-            filesToRemove.addAll(currentFileStore);
-            filesToRemove.removeAll(newFileStore);
+            BitSet filesToRemove = (BitSet) currentFileStore.clone();
+            filesToRemove.andNot(newFileStore);
+            movedFiles.or(filesToRemove);
 
-            for (String file : filesToRemove)
-                distributionChanges[i].removeFile(file);
+            for (int file = filesToRemove.nextSetBit(0); file >= 0; file = filesToRemove.nextSetBit(file + 1))
+                distributionChanges[i].removeFile(fileNames.getName(file));
 
             // Calculate the files to add to the file store.
-            Set<String> filesToAdd = new LinkedHashSet<String>();
-            filesToAdd.addAll(newFileStore);
-            filesToAdd.removeAll(currentFileStore);
-
-            for (String file : filesToAdd) {
-                Integer from = fileMap.get(file).getFirst();
-                Integer toPort = ports.get(i);
-
-                distributionChanges[from].sendFile(file, toPort);
+            BitSet filesToAdd = (BitSet) newFileStore.clone();
+            filesToAdd.andNot(currentFileStore);
+            movedFiles.or(filesToAdd);
+
+            for (int file = filesToAdd.nextSetBit(0); file >= 0; file = filesToAdd.nextSetBit(file + 1)) {
+                // Send from the current holder with the least sending work so far.
+                int from = fileHolders[holderOffsets[file]];
+                for (int h = holderOffsets[file] + 1; h < holderOffsets[file + 1]; h++)
+                    if (sendCounts[fileHolders[h]] < sendCounts[from]) from = fileHolders[h];
+
+                distributionChanges[from].sendFile(fileNames.getName(file), ports[i]);
+                sendCounts[from]++;
             }
         }
     }
@@ -200,11 +377,60 @@ public class RebalanceAlgorithm {
      * distribution with the new file distribution.
      */
     public static String[] generate() {
-        String[] messages = new String[currentFileDistribution.size()];
+        String[] messages = new String[storeCount];
 
-        for (int i = 0; i < currentFileDistribution.size(); i++)
+        for (int i = 0; i < storeCount; i++)
             messages[i] = distributionChanges[i].generateMessage();
 
         return messages;
     }
+
+    /**
+     * Leaves a file out of the plan, so no dstore sends or removes it.
+     * 
+     * Must be called before the rebalance messages are generated.
+     */
+    public static void dropFile(String _file) {
+        for (StoreChanges changes : distributionChanges) changes.dropFile(_file);
+    }
+
+    /**
+     * Returns the files that are added to or removed from any dstore.
+     */
+    public static List<String> getMovedFiles() {
+        List<String> files = new ArrayList<String>(movedFiles.cardinality());
+
+        for (int file = movedFiles.nextSetBit(0); file >= 0; file = movedFiles.nextSetBit(file + 1))
+            files.add(fileNames.getName(file));
+
+        return files;
+    }
+
+    /**
+     * Returns the ports of the dstores that each file is 
+     * stored on in the new file distribution.
+     */
+    public static HashMap<String, int[]> getNewFileLocations() {
+        int[][] locations = new int[fileNames.size()][];
+        int[] locationCounts = new int[fileNames.size()];
+
+        for (int store = 0; store < storeCount; store++) {
+            BitSet files = newFileDistribution[store];
+
+            for (int file = files.nextSetBit(0); file >= 0; file = files.nextSetBit(file + 1)) {
+                if (locations[file] == null) locations[file] = new int[2];
+                if (locationCounts[file] == locations[file].length) 
+                    locations[file] = Arrays.copyOf(locations[file], locationCounts[file] * 2);
+
+                locations[file][locationCounts[file]++] = ports[store];
+            }
+        }
+
+        HashMap<String, int[]> fileLocations = new HashMap<String, int[]>();
+        for (int file = 0; file < fileNames.size(); file++)
+            if (locations[file] != null) 
+                fileLocations.put(fileNames.getName(file), Arrays.copyOf(locations[file], locationCounts[file]));
+
+        return fileLocations;
+    }
 }
@@ -1,41 +1,96 @@
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class RebalanceModule {
 
-    private static Timer timer;
+    // Latency of rebalances, and of listing, planning and moving files.
+    private static final LatencyHistogram REBALANCE_LATENCY = LatencyStats.get("rebalance");
+    private static final LatencyHistogram REBALANCE_LIST_LATENCY = LatencyStats.get("rebalance.list");
+    private static final LatencyHistogram REBALANCE_PLAN_LATENCY = LatencyStats.get("rebalance.plan");
+    private static final LatencyHistogram REBALANCE_MOVE_LATENCY = LatencyStats.get("rebalance.move");
+
+    private static final LongAdder MOVED_BYTES = Metrics.counter("dfs_rebalance_moved_bytes_total", "", 
+        "Bytes of files copied to other dstores by rebalances.");
+    private static final LongAdder LIST_ACK_TIMEOUTS = Metrics.counter("dfs_ack_timeouts_total", "operation=\"list\"", 
+        "Waits for dstore acknowledgements that timed out.");
+    private static final LongAdder REBALANCE_ACK_TIMEOUTS = Metrics.counter("dfs_ack_timeouts_total", "operation=\"rebalance\"", 
+        "Waits for dstore acknowledgements that timed out.");
+
+    private static RebalanceScheduler scheduler;
 
     private static Flag rebalancing;
 
-    private static Flag rebalanceAck;
-    private static Flag listAck;
+    /**
+     * What has changed since the last successful rebalance.
+     */
+    private static DirtySet dirty;
+
+    /**
+     * Progress of the current (or last) rebalance's REBALANCE packets.
+     */
+    private static volatile RebalanceProgress progress;
+    private static volatile DstoreAcks listAcks;
+
+    /**
+     * Files the current rebalance removes from every dstore.
+     */
+    private static volatile Set<String> discardedFiles;
 
     public static void scheduleRebalance() {
         rebalancing = new Flag();
+        dirty = new DirtySet();
 
-        rebalanceAck = new Flag();
-        listAck = new Flag();
+        progress = new RebalanceProgress(new ArrayList<Integer>(), 0);
+        listAcks = new DstoreAcks(new ArrayList<Integer>());
+        discardedFiles = new HashSet<String>();
 
-        timer = new Timer("rebl");
-        timer.schedule(new TimerTask() { 
-            @Override
-            public void run() { 
-                if (Controller.enoughDStores()) startRebalance();
-                else Message.info("waiting for more dstores to join", 0);
-            }
-        }, Controller.getRebalancePeriod(), Controller.getRebalancePeriod());
+        // Triggers can't put a rebalance off for longer than the rebalance period.
+        scheduler = new RebalanceScheduler(() -> { 
+            if (Controller.enoughDStores()) startRebalance();
+            else Message.info("waiting for more dstores to join", 0);
+        }, Controller.getRebalanceQuietWindow(), Controller.getRebalanceMinInterval(), Controller.getRebalancePeriod());
+
+        scheduler.startPeriodic(Controller.getRebalancePeriod());
     }
 
     /**
-     * Starts a rebalancing operation if rebalancing isn't already running.
+     * Starts a rebalancing operation if rebalancing isn't already running 
+     * and something has changed since the last successful rebalance.
      */
     private static void startRebalance() {
         if (rebalancing.isSet()) return;
+
+        // The dstores' files aren't all in the index until recovery has finished.
+        if (!RecoveryModule.isServing()) {
+            Message.info("waiting for the index to be recovered", 0);
+            return;
+        }
+
+        // Notice dstores that have disconnected.
+        Controller.getDStoreListeners();
+
+        if (dirty.isEmpty()) {
+            Message.info("nothing changed since the last rebalance", 0);
+            return;
+        }
+
+        DirtySet changes = dirty.drain();
+        boolean succeeded = false;
+        long startTime = System.nanoTime();
         
         try {
             rebalancing.set();
-            rebalance();
+            rebalance(changes);
+
+            succeeded = true;
         } catch (IOException e) {
             e.printStackTrace();
         } catch (TimeoutException e) {
@@ -47,67 +102,291 @@ public class RebalanceModule {
 
             Message.failed("rebalancing operation failed", 0);
         } finally {
+            // Keep the changes for the next rebalance.
+            if (!succeeded) dirty.addAll(changes);
+
             rebalancing.reset();
+
+            REBALANCE_LATENCY.recordSince(startTime);
         }
     }
 
-    public static void rebalanceEarly() {
-        timer.cancel();
-        timer.purge();
+    /**
+     * Asks for a rebalance soon, e.g. after a dstore joins.
+     * 
+     * Requests that arrive close together lead to one rebalance.
+     */
+    public static void requestRebalance() {
+        scheduler.trigger();
+    }
 
-        timer = new Timer("rebl");
-        timer.schedule(new TimerTask() { 
-            @Override
-            public void run() { 
-                if (Controller.enoughDStores()) startRebalance();
-                else Message.info("waiting for more dstores to join", 0);
-            }
-        }, 0, Controller.getRebalancePeriod());
+    /**
+     * Returns the scheduler, which counts the rebalance triggers and runs.
+     */
+    public static RebalanceScheduler getScheduler() {
+        return scheduler;
     }
 
     /**
      * Performs the rebalancing operation.
      * 
+     * Only the dstores that joined or were involved in unfinished operations 
+     * are asked for their files, the files on the rest come from the index.
+     * 
      * @throws IOException
      * @throws TimeoutException
      * @throws RebalanceException
      */
-    private static void rebalance() throws IOException, TimeoutException, RebalanceException {
-        Message.process("starting rebalance", 0);
+    private static void rebalance(DirtySet _changes) throws IOException, TimeoutException, RebalanceException {
+        Message.process("starting rebalance (" + _changes + ", " + scheduler + ")", 0);
 
         Message.info("setting up algorithm", 1);
-        RebalanceAlgorithm.setup(Controller.getDStoreListeners().size());
+        long phaseTime = System.nanoTime();
+        RebalanceAlgorithm.setup();
 
-        Message.info("getting file listings from dstores", 1);
-        for (ClientDstoreListener dStoreListener : Controller.getDStoreListeners()) {
-            listAck.reset();
+        Set<Integer> listPorts = _changes.getListPorts();
 
-            dStoreListener.respond("LIST");
+        List<ClientDstoreListener> dStoreListeners = Controller.getDStoreListeners();
+        List<ClientDstoreListener> listedDstores = new ArrayList<ClientDstoreListener>();
+        List<Integer> listedPorts = new ArrayList<Integer>();
+        List<Integer> indexedPorts = new ArrayList<Integer>();
 
-            // Wait for LIST acknowledgement.
-            ConditionTimeout.waitForFlag(listAck, Controller.getTimeout());
+        for (ClientDstoreListener dStoreListener : dStoreListeners) {
+            int port = dStoreListener.getClientPort();
+
+            // Dstores whose inventory is still being merged join the next rebalance.
+            if (RecoveryModule.isInventoryPending(port)) continue;
+
+            if (listPorts.contains(port)) {
+                listedDstores.add(dStoreListener);
+                listedPorts.add(port);
+            } else {
+                indexedPorts.add(port);
+            }
         }
 
+        // Files whose store or remove didn't finish are removed from the dstores that list them.
+        Set<String> discards = ConcurrentHashMap.newKeySet();
+        for (String file : _changes.getFiles()) {
+            FileState state = Index.getState(file);
+            if (state != null && state != FileState.REMOVING) continue;
+
+            RebalanceAlgorithm.discardFile(file);
+            discards.add(file);
+        }
+        discardedFiles = discards;
+
+        Message.info("getting file listings from dstores " + listedPorts, 1);
+        listAcks = new DstoreAcks(listedPorts);
+
+        // Files that change from here on may not match the listings, so they are left out of the moves.
+        long listChangeCount = Index.getChangeCount();
+
+        // Send LIST to every changed dstore at once, and wait for the responses until one overall deadline.
+        for (ClientDstoreListener dStoreListener : listedDstores) dStoreListener.respond("LIST");
+
+        try {
+            listAcks.await(Controller.getTimeout());
+        } catch (TimeoutException e) {
+            LIST_ACK_TIMEOUTS.increment();
+
+            // Dstores that didn't respond in time are left out of this rebalance, and listed again in the next one.
+            Message.error("no LIST response from dstores " + listAcks.getPendingPorts(), 1);
+
+            for (Integer port : listAcks.getPendingPorts()) dirty.dstoreChanged(port);
+        }
+
+        // The files on the other dstores come from the index, read after the listings so they are as recent.
+        HashMap<Integer, List<String>> storedReplicas = Index.listStoredReplicas();
+        for (Integer port : indexedPorts) {
+            List<String> files = storedReplicas.getOrDefault(port, new ArrayList<String>());
+            RebalanceAlgorithm.addFileStore(port, files.toArray(new String[0]));
+        }
+
+        RebalanceAlgorithm.finishListing();
+        phaseTime = REBALANCE_LIST_LATENCY.recordSince(phaseTime);
+
         Message.info("running rebalance algorithm", 1);
         RebalanceAlgorithm.calculate(Controller.getReplicationFactor());
-        
-        Message.info("sending rebalance packets to dstores", 1);
-        String[] packets = RebalanceAlgorithm.generate();
-        for (int i = 0; i < packets.length; i++) {
-            String packet = packets[i];
 
-            rebalanceAck.reset();
+        Map<String, int[]> newFileLocations = RebalanceAlgorithm.getNewFileLocations();
+
+        // Only the files being moved are held back from clients, the rest are served as normal.
+        List<String> movingFiles = startMoves(RebalanceAlgorithm.getMovedFiles(), newFileLocations, listChangeCount);
+        Message.info("moving " + movingFiles.size() + " files", 1);
 
-            ClientDstoreListener dStoreListener = Controller.getDStoreListeners().get(i);
-            dStoreListener.respond(packet);
+        String[] packets = RebalanceAlgorithm.generate();
+        phaseTime = REBALANCE_PLAN_LATENCY.recordSince(phaseTime);
 
-            // Wait for REBALANCE acknowledgement.
-            ConditionTimeout.waitForFlag(rebalanceAck, Controller.getTimeout());
+        try {
+            sendRebalance(packets, movingFiles, newFileLocations);
+        } finally {
+            for (String file : movingFiles) Index.finishMove(file);
         }
+        REBALANCE_MOVE_LATENCY.recordSince(phaseTime);
+
+        // Files that failed to be removed are now gone from every dstore.
+        for (String file : discardedFiles)
+            if (Index.isFileBeingRemoved(file)) Index.removeFile(file);
 
         Message.success("rebalancing finished successfully", 0);
     }
 
+    /**
+     * Marks the files a rebalance moves as moving.
+     * 
+     * Files being discarded aren't marked, as no client can use them. Files that 
+     * clients stored, removed or started removing since they were listed are 
+     * dropped from the plan, and left to the next rebalance, including files 
+     * being discarded that a client has stored again.
+     */
+    private static List<String> startMoves(List<String> _movedFiles, Map<String, int[]> _newFileLocations, long _listChangeCount) {
+        List<String> movingFiles = new ArrayList<String>();
+
+        for (String file : _movedFiles) {
+            if (discardedFiles.contains(file)) {
+                FileState state = Index.getState(file);
+                if (state == null || (state == FileState.REMOVING && !Index.changedSince(file, _listChangeCount))) continue;
+
+                Message.info(file + " was stored again while the rebalance was being planned, leaving it for the next one", 1);
+                RebalanceAlgorithm.dropFile(file);
+                discardedFiles.remove(file);
+
+                if (state == FileState.STORED) dirtyFile(file);
+                continue;
+            }
+
+            // A client removed the file after it was listed.
+            if (Index.getState(file) == null) {
+                RebalanceAlgorithm.dropFile(file);
+                continue;
+            }
+
+            // Loads are served by the dstores that keep the file throughout the move.
+            int[] keptReplicas = Index.getReplicas(file).clone();
+            int[] newReplicas = _newFileLocations.getOrDefault(file, new int[0]);
+            int keptCount = 0;
+            for (int replica : keptReplicas)
+                for (int newReplica : newReplicas)
+                    if (replica == newReplica) keptReplicas[keptCount++] = replica;
+
+            // Once the file is moving no client can change it, so checking for changes after this is enough.
+            boolean started = Index.startMove(file, Arrays.copyOf(keptReplicas, keptCount));
+            if (!started || Index.changedSince(file, _listChangeCount)) {
+                if (started) Index.finishMove(file);
+
+                Message.info(file + " changed while the rebalance was being planned, leaving it for the next one", 1);
+                RebalanceAlgorithm.dropFile(file);
+
+                // Removes clean up after themselves, stored files are checked again.
+                if (Index.getState(file) == FileState.STORED) dirtyFile(file);
+                continue;
+            }
+
+            movingFiles.add(file);
+        }
+
+        return movingFiles;
+    }
+
+    /**
+     * Has the next rebalance list the dstores recorded as holding the file.
+     */
+    private static void dirtyFile(String _file) {
+        List<Integer> holders = new ArrayList<Integer>();
+        for (int replica : Index.getReplicas(_file)) holders.add(replica);
+
+        dirty.fileChanged(_file, holders);
+    }
+
+    /**
+     * Sends each dstore its REBALANCE packet, waits for them to 
+     * complete, then records the moved files' new locations in the index.
+     * 
+     * If a dstore fails, only the files it wasn't involved in are updated, 
+     * and every dstore is listed by the next rebalance.
+     * @throws RebalanceException if a dstore didn't complete the rebalance.
+     */
+    private static void sendRebalance(String[] _packets, List<String> _movingFiles, Map<String, int[]> _newFileLocations) throws TimeoutException, RebalanceException {
+        Message.info("sending rebalance packets to dstores", 1);
+
+        // Collect the dstores that are still connected.
+        ClientDstoreListener[] receivers = new ClientDstoreListener[_packets.length];
+        List<Integer> receiverPorts = new ArrayList<Integer>();
+        for (int i = 0; i < _packets.length; i++) {
+            receivers[i] = Controller.getDStoreListener(RebalanceAlgorithm.getPort(i));
+            if (receivers[i] != null) receiverPorts.add(RebalanceAlgorithm.getPort(i));
+        }
+
+        progress = new RebalanceProgress(receiverPorts, _packets.length);
+        for (int i = 0; i < _packets.length; i++)
+            if (receivers[i] == null) progress.fail(RebalanceAlgorithm.getPort(i));
+
+        // Send every REBALANCE packet at once, so the dstores move data at the same time.
+        for (int i = 0; i < _packets.length; i++)
+            if (receivers[i] != null) receivers[i].respond(_packets[i]);
+
+        // Wait for each dstore's REBALANCE_COMPLETE.
+        if (!progress.await(Controller.getTimeout())) REBALANCE_ACK_TIMEOUTS.increment();
+
+        Message.info("rebalance progress: " + progress, 1);
+
+        // Dstores that completed have already moved their files, so every dstore is listed again by the next rebalance.
+        Set<Integer> failedPorts = progress.getFailedPorts();
+        if (!failedPorts.isEmpty()) 
+            for (Integer port : receiverPorts) dirty.dstoreChanged(port);
+
+        Message.info("updating file locations in the index", 1);
+        long movedBytes = 0;
+        for (String file : _movingFiles) {
+            int[] oldReplicas = Index.getReplicas(file);
+            int[] newReplicas = _newFileLocations.getOrDefault(file, new int[0]);
+
+            // Files moved by dstores that failed are left to the next rebalance.
+            if (involvesAny(oldReplicas, failedPorts) || involvesAny(newReplicas, failedPorts)) continue;
+            int fileSize = Math.max(0, Index.fileSize(file));
+
+            // Count the copies made on dstores that didn't hold the file.
+            for (int newReplica : newReplicas)
+                if (Arrays.stream(oldReplicas).noneMatch(replica -> replica == newReplica)) 
+                    movedBytes += fileSize;
+
+            Index.setReplicas(file, newReplicas);
+        }
+        MOVED_BYTES.add(movedBytes);
+
+        if (!failedPorts.isEmpty())
+            throw new RebalanceException("dstores " + failedPorts + " didn't complete the rebalance");
+    }
+
+    private static boolean involvesAny(int[] _replicas, Set<Integer> _ports) {
+        for (int replica : _replicas) if (_ports.contains(replica)) return true;
+
+        return false;
+    }
+
+    //// CHANGES ////
+
+    /**
+     * Records a dstore that joined.
+     * 
+     * @param _needsListing true if the index doesn't know the dstore's files, so it has to list them.
+     */
+    public static void dstoreJoined(int _dstorePort, boolean _needsListing) {
+        dirty.dstoreJoined(_dstorePort, _needsListing);
+    }
+
+    public static void dstoreLeft(int _dstorePort) {
+        dirty.dstoreLeft(_dstorePort);
+    }
+
+    /**
+     * Records a store or remove that didn't finish, and the dstores that may still hold the file.
+     */
+    public static void operationFailed(String _fileName, Iterable<Integer> _dstorePorts) {
+        dirty.fileChanged(_fileName, _dstorePorts);
+    }
+
     public static boolean isRebalancing() { 
         return rebalancing.isSet(); 
     }
@@ -115,20 +394,56 @@ public class RebalanceModule {
     /**
      * LIST acknowledge is set when the dstore listener receives a LIST response.
      */
-    public static void setListAck() { 
-        listAck.set();
+    public static void setListAck(int _dstorePort) { 
+        listAcks.ack(_dstorePort);
+    }
+
+    public static void setRebalanceAck(int _dstorePort) { 
+        RebalanceProgress currentProgress = progress;
+
+        currentProgress.complete(_dstorePort);
+
+        Message.info("rebalance progress: " + currentProgress, 1);
+    }
+
+    /**
+     * Records a dstore that couldn't send every file it was asked to.
+     */
+    public static void setRebalanceFailed(int _dstorePort) { 
+        RebalanceProgress currentProgress = progress;
+
+        currentProgress.fail(_dstorePort);
+
+        Message.info("rebalance progress: " + currentProgress, 1);
     }
 
-    public static void setRebalanceAck() { 
-        rebalanceAck.set();
+    /**
+     * Returns how many dstores have completed, are still moving 
+     * files or have failed in the current (or last) rebalance.
+     */
+    public static RebalanceProgress getProgress() {
+        return progress;
     }
 
     /**
      * Map listed files to their corrsponding dstores (ports).
+     * 
+     * Files that clients are storing or removing are left to those operations, 
+     * unless the rebalance is cleaning up after them.
      */
     public static void addFileList(int _dstorePort, String[] _files) { 
+        List<String> files = new ArrayList<String>(_files.length);
+        for (String file : _files) {
+            FileState state = Index.getState(file);
+
+            if (state == FileState.STORING) continue;
+            if (state == FileState.REMOVING && !discardedFiles.contains(file)) continue;
+
+            files.add(file);
+        }
+
         try {
-            RebalanceAlgorithm.addFileStore(_dstorePort, _files);
+            RebalanceAlgorithm.addFileStore(_dstorePort, files.toArray(new String[0]));
         } catch (RebalanceException e) {
             Message.error(e.getMessage(), 1);
         }
@@ -0,0 +1,148 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the data moved by the rebalance planner with the 
+ * previous planner, which rebuilt the distribution from scratch.
+ * 
+ * Usage: java RebalancePlannerBenchmark [stores] [files] [replication factor]
+ * e.g.   java RebalancePlannerBenchmark 20 10000 3
+ * 
+ * Runs both planners on synthetic clusters with random file sizes (1KB - 10MB) 
+ * and prints the replicas and bytes each plan moves as CSV:
+ *  - add-node:    a balanced cluster plus one new, empty dstore.
+ *  - lost-node:   a balanced cluster after one dstore and its replicas are lost.
+ *  - random:      every file on R randomly chosen dstores.
+ */
+public class RebalancePlannerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int storeCount = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int fileCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int replicationFactor = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        Random random = new Random(42);
+
+        HashMap<String, Long> fileSizes = new HashMap<String, Long>();
+        for (int i = 0; i < fileCount; i++) 
+            fileSizes.put("file" + i, 1024L + (long) (random.nextDouble() * 10 * 1024 * 1024));
+
+        System.out.println("scenario,stores,files,r,planner,replicas_moved,bytes_moved,plan_ms");
+
+        run("add-node", addNode(storeCount, fileSizes, replicationFactor), fileSizes, replicationFactor);
+        run("lost-node", lostNode(storeCount, fileSizes, replicationFactor), fileSizes, replicationFactor);
+        run("random", randomCluster(storeCount, fileSizes, replicationFactor, random), fileSizes, replicationFactor);
+    }
+
+    private static void run(String _scenario, List<Set<String>> _cluster, Map<String, Long> _fileSizes, int _R) throws RebalanceException {
+        // Current planner.
+        long startTime = System.nanoTime();
+
+        RebalanceAlgorithm.setup();
+        for (int i = 0; i < _cluster.size(); i++) 
+            RebalanceAlgorithm.addFileStore(i, _cluster.get(i).toArray(new String[0]));
+        RebalanceAlgorithm.finishListing();
+        RebalanceAlgorithm.calculate(_R);
+
+        List<Set<String>> plan = new ArrayList<Set<String>>();
+        for (int i = 0; i < _cluster.size(); i++) plan.add(new LinkedHashSet<String>());
+        for (Map.Entry<String, int[]> fileLocation : RebalanceAlgorithm.getNewFileLocations().entrySet())
+            for (int port : fileLocation.getValue()) plan.get(port).add(fileLocation.getKey());
+
+        report(_scenario, "movement-minimizing", _cluster, plan, _fileSizes, _R, System.nanoTime() - startTime);
+
+        // Previous planner.
+        startTime = System.nanoTime();
+        List<Set<String>> scratchPlan = planFromScratch(_cluster, _R);
+        report(_scenario, "from-scratch", _cluster, scratchPlan, _fileSizes, _R, System.nanoTime() - startTime);
+    }
+
+    /**
+     * The previous planner: each replica of each file goes to the store with the fewest files.
+     */
+    private static List<Set<String>> planFromScratch(List<Set<String>> _cluster, int _R) {
+        Set<String> files = new LinkedHashSet<String>();
+        for (Set<String> store : _cluster) files.addAll(store);
+
+        List<Set<String>> plan = new ArrayList<Set<String>>();
+        for (int i = 0; i < _cluster.size(); i++) plan.add(new LinkedHashSet<String>());
+
+        for (String file : files)
+            for (int i = 0; i < _R; i++)
+                plan.stream().min(Comparator.comparingInt(Set::size)).get().add(file);
+
+        return plan;
+    }
+
+    private static void report(String _scenario, String _planner, List<Set<String>> _cluster, List<Set<String>> _plan, 
+                               Map<String, Long> _fileSizes, int _R, long _planTime) {
+        long replicasMoved = 0;
+        long bytesMoved = 0;
+
+        for (int i = 0; i < _cluster.size(); i++) {
+            for (String file : _plan.get(i)) {
+                if (_cluster.get(i).contains(file)) continue;
+
+                replicasMoved++;
+                bytesMoved += _fileSizes.get(file);
+            }
+        }
+
+        System.out.println(_scenario + "," + _cluster.size() + "," + _fileSizes.size() + "," + _R + "," + _planner 
+            + "," + replicasMoved + "," + bytesMoved + "," + _planTime / 1000000);
+    }
+
+
+
+    //// SYNTHETIC CLUSTERS ////
+
+    private static List<Set<String>> balanced(int _storeCount, Map<String, Long> _fileSizes, int _R) {
+        List<Set<String>> cluster = new ArrayList<Set<String>>();
+        for (int i = 0; i < _storeCount; i++) cluster.add(new LinkedHashSet<String>());
+
+        int next = 0;
+        for (String file : _fileSizes.keySet()) {
+            for (int r = 0; r < _R; r++) cluster.get((next + r) % _storeCount).add(file);
+            next = (next + _R) % _storeCount;
+        }
+
+        return cluster;
+    }
+
+    private static List<Set<String>> addNode(int _storeCount, Map<String, Long> _fileSizes, int _R) {
+        List<Set<String>> cluster = balanced(_storeCount - 1, _fileSizes, _R);
+        cluster.add(new LinkedHashSet<String>());
+
+        return cluster;
+    }
+
+    private static List<Set<String>> lostNode(int _storeCount, Map<String, Long> _fileSizes, int _R) {
+        List<Set<String>> cluster = balanced(_storeCount + 1, _fileSizes, _R);
+        cluster.remove(cluster.size() - 1);
+
+        return cluster;
+    }
+
+    private static List<Set<String>> randomCluster(int _storeCount, Map<String, Long> _fileSizes, int _R, Random _random) {
+        List<Set<String>> cluster = new ArrayList<Set<String>>();
+        List<Integer> stores = new ArrayList<Integer>();
+        for (int i = 0; i < _storeCount; i++) {
+            cluster.add(new LinkedHashSet<String>());
+            stores.add(i);
+        }
+
+        for (String file : _fileSizes.keySet()) {
+            Collections.shuffle(stores, _random);
+            for (int r = 0; r < _R; r++) cluster.get(stores.get(r)).add(file);
+        }
+
+        return cluster;
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks which dstores have completed their part of a rebalance.
+ */
+public class RebalanceProgress {
+    private final int dstoreCount;
+
+    private final DstoreAcks completions;
+    private final Set<Integer> failedPorts;
+
+    /**
+     * @param _ports ports of the dstores that were sent a REBALANCE packet.
+     * @param _dstoreCount number of dstores in the rebalance, including ones that couldn't be sent one.
+     */
+    public RebalanceProgress(Iterable<Integer> _ports, int _dstoreCount) {
+        dstoreCount = _dstoreCount;
+
+        completions = new DstoreAcks(_ports);
+        failedPorts = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Records a REBALANCE_COMPLETE from a dstore.
+     */
+    public void complete(int _port) { 
+        completions.ack(_port); 
+    }
+
+    /**
+     * Records a dstore that won't complete its part of the rebalance, 
+     * so the rebalance stops waiting for it.
+     */
+    public void fail(int _port) { 
+        failedPorts.add(_port); 
+        completions.ack(_port);
+    }
+
+    /**
+     * Waits for every dstore that was sent a REBALANCE packet to complete.
+     * 
+     * Dstores that haven't completed when the timeout expires are marked as failed.
+     * 
+     * Returns false if the timeout expired.
+     */
+    public boolean await(int _timeout) {
+        try {
+            completions.await(_timeout);
+        } catch (TimeoutException e) {
+            for (Integer port : completions.getPendingPorts()) fail(port);
+
+            return false;
+        }
+
+        return true;
+    }
+
+    public int getFailedCount() { return failedPorts.size(); }
+
+    public int getPendingCount() { 
+        return (int) completions.getPendingPorts().stream().filter(port -> !failedPorts.contains(port)).count(); 
+    }
+
+    public int getDoneCount() { return dstoreCount - getPendingCount() - getFailedCount(); }
+
+    public Set<Integer> getFailedPorts() { return failedPorts; }
+
+    @Override
+    public String toString() {
+        return getDoneCount() + " done, " + getPendingCount() + " pending, " + getFailedCount() + " failed";
+    }
+}
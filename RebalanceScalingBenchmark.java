@@ -0,0 +1,94 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how the rebalance planner scales with the number of files.
+ * 
+ * Usage: java -Xmx<heap> RebalanceScalingBenchmark [stores] [replication factor] [file counts...]
+ * e.g.   java -Xmx16g RebalanceScalingBenchmark 20 3 1000000 10000000 50000000
+ * 
+ * For each file count, lists a cluster where one new, empty dstore has joined 
+ * and plans the rebalance. Prints the listing time, the planning time and the 
+ * peak heap used as CSV. The defaults stop at 1M files, larger runs need -Xmx set.
+ */
+public class RebalanceScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int storeCount = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int replicationFactor = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        int[] fileCounts = new int[] { 10000, 100000, 1000000 };
+        if (args.length > 2) {
+            fileCounts = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) fileCounts[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("stores,files,r,list_ms,plan_ms,peak_heap_mb");
+
+        for (int fileCount : fileCounts) run(storeCount, fileCount, replicationFactor);
+    }
+
+    private static void run(int _storeCount, int _fileCount, int _replicationFactor) throws Exception {
+        System.gc();
+        resetPeakUsage();
+
+        long start = System.nanoTime();
+
+        RebalanceAlgorithm.setup();
+        for (int store = 0; store < _storeCount; store++)
+            RebalanceAlgorithm.addFileStore(store, listing(store, _storeCount, _fileCount, _replicationFactor));
+
+        // The last store has just joined, so it has no files.
+        RebalanceAlgorithm.addFileStore(_storeCount, new String[0]);
+        RebalanceAlgorithm.finishListing();
+
+        long listed = System.nanoTime();
+
+        RebalanceAlgorithm.calculate(_replicationFactor);
+        RebalanceAlgorithm.generate();
+
+        long planned = System.nanoTime();
+
+        System.out.println(_storeCount + 1 + "," + _fileCount + "," + _replicationFactor + "," 
+            + (listed - start) / 1000000 + "," + (planned - listed) / 1000000 + "," + peakUsage() / (1024 * 1024));
+
+        RebalanceAlgorithm.setup();
+    }
+
+    /**
+     * Returns the files on a store in a balanced cluster, with
+     * each file on R consecutive stores from a random start.
+     */
+    private static String[] listing(int _store, int _storeCount, int _fileCount, int _replicationFactor) {
+        Random random = new Random(42);
+
+        int count = 0;
+        String[] files = new String[(int) ((long) _fileCount * _replicationFactor / _storeCount) + _fileCount / 100 + 16];
+
+        for (int file = 0; file < _fileCount; file++) {
+            int offset = Math.floorMod(_store - random.nextInt(_storeCount), _storeCount);
+            if (offset >= _replicationFactor) continue;
+
+            if (count == files.length) files = Arrays.copyOf(files, count * 2);
+            files[count++] = "file" + file;
+        }
+
+        return Arrays.copyOf(files, count);
+    }
+
+    private static void resetPeakUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+    }
+
+    private static long peakUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+
+        return peak;
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when rebalances run.
+ * 
+ * Triggers that arrive close together are coalesced into one run, which 
+ * starts once no trigger has arrived for a quiet window. Runs are at 
+ * least a minimum interval apart, and only one runs at a time: triggers 
+ * that arrive during a run queue a single run after it.
+ */
+public class RebalanceScheduler {
+    private final ScheduledExecutorService executor;
+    private final Runnable rebalance;
+
+    private final long quietWindow;
+    private final long minInterval;
+
+    /**
+     * Longest a run can be put off by triggers that keep arriving.
+     */
+    private final long maxDelay;
+
+    // Guarded by this.
+    private ScheduledFuture<?> pendingRun;
+    private long pendingGeneration;
+    private long firstPendingTrigger;
+    private boolean running;
+    private boolean queued;
+    private long lastRunFinished;
+
+    private final AtomicLong triggerCount;
+    private final AtomicLong coalescedCount;
+    private final AtomicLong runCount;
+
+    /**
+     * @param _rebalance performs a rebalance, always on the scheduler's one thread.
+     * @param _quietWindow milliseconds without a trigger before a run starts.
+     * @param _minInterval milliseconds between the end of a run and the start of the next.
+     * @param _maxDelay longest (milliseconds) triggers can put off a run.
+     */
+    public RebalanceScheduler(Runnable _rebalance, int _quietWindow, int _minInterval, int _maxDelay) {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "rebl"));
+        rebalance = _rebalance;
+
+        quietWindow = TimeUnit.MILLISECONDS.toNanos(_quietWindow);
+        minInterval = TimeUnit.MILLISECONDS.toNanos(_minInterval);
+        maxDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(_maxDelay, _quietWindow));
+
+        lastRunFinished = System.nanoTime() - minInterval;
+
+        triggerCount = new AtomicLong();
+        coalescedCount = new AtomicLong();
+        runCount = new AtomicLong();
+    }
+
+    /**
+     * Triggers a rebalance every period, on top of the other triggers.
+     */
+    public void startPeriodic(int _period) {
+        executor.scheduleWithFixedDelay(this::trigger, _period, _period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asks for a rebalance.
+     * 
+     * If a run is already waiting or queued, the trigger is coalesced into it.
+     */
+    public synchronized void trigger() {
+        triggerCount.incrementAndGet();
+        long now = System.nanoTime();
+
+        if (running) {
+            if (queued) coalescedCount.incrementAndGet();
+            else firstPendingTrigger = now;
+
+            queued = true;
+            return;
+        }
+
+        if (pendingRun != null) {
+            coalescedCount.incrementAndGet();
+            pendingRun.cancel(false);
+        } else {
+            firstPendingTrigger = now;
+        }
+
+        schedule(now);
+    }
+
+    /**
+     * Schedules the next run after the quiet window and minimum interval, 
+     * unless that is longer than triggers are allowed to put it off.
+     */
+    private void schedule(long _now) {
+        long start = Math.max(_now + quietWindow, lastRunFinished + minInterval);
+        start = Math.min(start, Math.max(firstPendingTrigger + maxDelay, lastRunFinished + minInterval));
+
+        long generation = ++pendingGeneration;
+        pendingRun = executor.schedule(() -> run(generation), Math.max(0, start - _now), TimeUnit.NANOSECONDS);
+    }
+
+    private void run(long _generation) {
+        synchronized (this) {
+            // A newer trigger replaced this run.
+            if (_generation != pendingGeneration) return;
+
+            pendingRun = null;
+            running = true;
+        }
+
+        try {
+            runCount.incrementAndGet();
+            rebalance.run();
+        } finally {
+            synchronized (this) {
+                running = false;
+                lastRunFinished = System.nanoTime();
+
+                if (queued) {
+                    queued = false;
+                    schedule(lastRunFinished);
+                }
+            }
+        }
+    }
+
+    public long getTriggerCount() { return triggerCount.get(); }
+
+    /**
+     * Returns the number of triggers that were merged into a run another trigger had already asked for.
+     */
+    public long getCoalescedCount() { return coalescedCount.get(); }
+
+    public long getRunCount() { return runCount.get(); }
+
+    @Override
+    public String toString() {
+        return getTriggerCount() + " triggers, " + getCoalescedCount() + " coalesced, " + getRunCount() + " runs";
+    }
+}
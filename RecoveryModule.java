@@ -0,0 +1,240 @@
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rebuilds the index from the files the dstores hold when the controller starts.
+ *
+ * Each dstore sends its inventory (file names and sizes) when it joins, or
+ * is asked for it if it doesn't, and the inventories are merged into the
+ * index in parallel. Clients are
+ * served once at least R dstores have joined, every dstore that joined has
+ * sent its inventory, and no dstore has joined for a quiet window.
+ */
+public class RecoveryModule {
+
+    /**
+     * Merges inventories into the index, one dstore per thread.
+     */
+    private static ScheduledExecutorService mergers;
+
+    /**
+     * Completes once the controller is serving clients.
+     */
+    private static CompletableFuture<Void> serving;
+
+    /**
+     * Ports of the dstores whose inventories haven't been merged yet.
+     */
+    private static Set<Integer> pendingInventories;
+
+    private static volatile long lastJoin;
+    private static long startTime;
+    private static volatile long timeToServing;
+
+    private static AtomicInteger recoveredFiles;
+    private static AtomicInteger recoveredDstores;
+
+    public static void setup() {
+        mergers = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+            runnable -> new Thread(runnable, "rcvr"));
+
+        serving = new CompletableFuture<Void>();
+        pendingInventories = ConcurrentHashMap.newKeySet();
+
+        startTime = System.nanoTime();
+        lastJoin = startTime;
+        timeToServing = -1;
+
+        recoveredFiles = new AtomicInteger();
+        recoveredDstores = new AtomicInteger();
+    }
+
+
+
+    //// GATHERING INVENTORIES ////
+
+    /**
+     * Merges the inventory a dstore sent with JOIN, or asks it 
+     * for its inventory if it didn't send one (null).
+     */
+    public static void dstoreJoined(ClientDstoreListener _dstoreListener, String[] _inventory) {
+        int port = _dstoreListener.getClientPort();
+
+        lastJoin = System.nanoTime();
+        pendingInventories.add(port);
+
+        if (_inventory != null) addInventory(port, _inventory);
+        else _dstoreListener.respond("INVENTORY");
+
+        // Dstores that don't send their inventory in time don't hold back serving, 
+        // and the next rebalance lists their files instead.
+        mergers.schedule(() -> {
+            if (pendingInventories.remove(port)) {
+                Message.error("no inventory from dstore " + port + ", listing its files in the next rebalance", 0);
+
+                RebalanceModule.dstoreJoined(port, true);
+                RebalanceModule.requestRebalance();
+            }
+
+            checkServing();
+        }, Controller.getTimeout(), TimeUnit.MILLISECONDS);
+
+        scheduleServingCheck();
+    }
+
+    /**
+     * Merges a dstore's inventory into the index.
+     * 
+     * The inventory is pairs of a file name and its size, or "size/checksum" (hex CRC32C).
+     */
+    public static void addInventory(int _dstorePort, String[] _inventory) {
+        mergers.execute(() -> {
+            long start = System.nanoTime();
+            int added = 0;
+
+            for (int i = 0; i + 1 < _inventory.length; i += 2) {
+                String[] sizeAndChecksum = _inventory[i + 1].split("/", 2);
+
+                long fileSize;
+                long checksum = -1;
+                try {
+                    fileSize = Long.parseLong(sizeAndChecksum[0]);
+                    if (sizeAndChecksum.length == 2) checksum = Long.parseLong(sizeAndChecksum[1], 16);
+                } catch (NumberFormatException e) {
+                    Message.error("skipped " + _inventory[i] + " in the inventory of dstore " + _dstorePort + ": invalid size " + _inventory[i + 1], 1);
+                    continue;
+                }
+
+                // The index records sizes as ints, like STORE does.
+                if (fileSize > Integer.MAX_VALUE) {
+                    Message.error("skipped " + _inventory[i] + " in the inventory of dstore " + _dstorePort + ": " + fileSize + " bytes is too large", 1);
+                    continue;
+                }
+
+                if (mergeFile(_inventory[i], (int) fileSize, checksum, _dstorePort)) added++;
+            }
+
+            recoveredFiles.addAndGet(added);
+            recoveredDstores.incrementAndGet();
+
+            Message.info("merged inventory of dstore " + _dstorePort + ": " + _inventory.length / 2 + " files ("
+                + added + " new) in " + (System.nanoTime() - start) / 1000000 + "ms", 0);
+
+            pendingInventories.remove(_dstorePort);
+
+            // The dstore's files are in the index now, so a rebalance can plan for it without listing them.
+            RebalanceModule.dstoreJoined(_dstorePort, false);
+            RebalanceModule.requestRebalance();
+
+            scheduleServingCheck();
+        });
+    }
+
+    /**
+     * Returns true if the dstore's inventory hasn't been merged into the index yet.
+     */
+    public static boolean isInventoryPending(int _dstorePort) {
+        return pendingInventories.contains(_dstorePort);
+    }
+
+    /**
+     * Records a file held by a dstore.
+     *
+     * A persisted index already knows which files exist, so only the replica is recorded,
+     * and a file missing from it was removed while the dstore was away. Such stale copies 
+     * are removed from the dstore by the next rebalance. Otherwise the index can't tell a
+     * removed file from one it hasn't seen yet, e.g. on a dstore that rejoins after serving
+     * has started, so unknown files are added to it.
+     *
+     * Returns true if the file was added to the index.
+     */
+    private static boolean mergeFile(String _fileName, int _fileSize, long _checksum, int _dstorePort) {
+        boolean added = false;
+
+        if (!Index.isPersistent()) {
+            try {
+                added = Index.addFile(_fileName, _fileSize);
+                if (added) Index.storeComplete(_fileName);
+            } catch (IndexException e) {
+                return false;
+            }
+        }
+
+        FileState state = Index.getState(_fileName);
+        int fileSize = Index.fileSize(_fileName);
+        if (state == null || fileSize < 0) {
+            RebalanceModule.operationFailed(_fileName, List.of(_dstorePort));
+            return false;
+        }
+
+        // Files being stored or removed are left to those operations.
+        if (state != FileState.STORED && state != FileState.MOVING) return false;
+
+        // A copy that differs from the others isn't used, and is overwritten if the file is placed there again.
+        if (fileSize != _fileSize || (_checksum >= 0 && !Index.matchChecksum(_fileName, _checksum))) {
+            Message.error("dstore " + _dstorePort + " holds a different copy of " + _fileName, 1);
+            return false;
+        }
+
+        Index.addReplica(_fileName, _dstorePort);
+
+        return added;
+    }
+
+
+
+    //// SERVING ////
+
+    private static void scheduleServingCheck() {
+        mergers.schedule(RecoveryModule::checkServing, Controller.getRebalanceQuietWindow(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts serving clients if the index is consistent with the dstores that have joined.
+     */
+    private static synchronized void checkServing() {
+        if (isServing()) return;
+
+        if (!Controller.enoughDStores()) return;
+        if (!pendingInventories.isEmpty()) return;
+        if (System.nanoTime() - lastJoin < TimeUnit.MILLISECONDS.toNanos(Controller.getRebalanceQuietWindow())) return;
+
+        timeToServing = (System.nanoTime() - startTime) / 1000000;
+        serving.complete(null);
+
+        Message.success("serving clients " + timeToServing + "ms after starting, with " + Index.fileCount()
+            + " files (" + recoveredFiles.get() + " recovered from " + recoveredDstores.get() + " dstores)", 0);
+
+        // Bring the recovered files back to R replicas.
+        RebalanceModule.requestRebalance();
+    }
+
+    public static boolean isServing() { return serving.isDone(); }
+
+    /**
+     * Waits for the controller to start serving clients.
+     *
+     * Doesn't wait if too few dstores have joined, as clients are then told there aren't enough.
+     */
+    public static void awaitServing(int _timeout) {
+        if (isServing() || !Controller.enoughDStores()) return;
+
+        try {
+            serving.get(_timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | java.util.concurrent.TimeoutException e) {
+            Message.info("still recovering the index", 1);
+        }
+    }
+
+    /**
+     * Returns the milliseconds from starting to serving clients, or -1 if not serving yet.
+     */
+    public static long getTimeToServing() { return timeToServing; }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Used by the controller to serve every client and dstore connection
+ * from one selector thread, instead of one thread per connection.
+ * 
+ * Packets are handled by small pools of worker threads, so the selector 
+ * thread only moves bytes. Dstore packets have a pool of their own, so 
+ * acknowledgements can't be stuck behind client packets waiting for them.
+ */
+public class SelectorListener extends Thread {
+
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+
+    private ExecutorService workers;
+    private ExecutorService dstoreWorkers;
+
+    private ByteBuffer readBuffer;
+
+    /**
+     * Connection and the listener that handles its packets.
+     */
+    private static class Session {
+        ChannelConnection connection;
+        ClientDstoreListener listener;
+    }
+
+    public SelectorListener(int _port, int _workerCount) throws IOException {
+        selector = Selector.open();
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(_port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger workerNumber = new AtomicInteger();
+        ThreadFactory workerFactory = runnable -> new Thread(runnable, "wrk" + workerNumber.incrementAndGet());
+        workers = Executors.newFixedThreadPool(_workerCount, workerFactory);
+
+        AtomicInteger dstoreWorkerNumber = new AtomicInteger();
+        ThreadFactory dstoreWorkerFactory = runnable -> new Thread(runnable, "dwrk" + dstoreWorkerNumber.incrementAndGet());
+        dstoreWorkers = Executors.newFixedThreadPool(_workerCount, dstoreWorkerFactory);
+
+        Metrics.gauge("dfs_queue_depth", "queue=\"workers\"", "Items waiting in a queue.", 
+            () -> HandlerThreads.queueDepth(workers));
+        Metrics.gauge("dfs_queue_depth", "queue=\"dstore_workers\"", "Items waiting in a queue.", 
+            () -> HandlerThreads.queueDepth(dstoreWorkers));
+
+        readBuffer = ByteBuffer.allocateDirect(8192);
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) accept();
+                    else {
+                        if (key.isReadable()) read(key);
+                        if (key.isValid() && key.isWritable()) write(key);
+                    }
+                }
+            } catch (IOException e) {
+                Message.error("selector listener crashed: " + e.getMessage(), 0);
+                break;
+            }
+        }
+    }
+
+
+
+    //// SELECTOR EVENTS ////
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+
+        channel.configureBlocking(false);
+
+        Session session = new Session();
+        session.connection = new ChannelConnection(channel);
+        session.listener = new ClientDstoreListener(session.connection);
+
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ, session);
+        session.connection.setKey(key);
+
+        Message.info("new connection established from ", session.connection.getAddress(), 1);
+    }
+
+    private void read(SelectionKey _key) {
+        Session session = (Session) _key.attachment();
+
+        try {
+            readBuffer.clear();
+            int bytesRead = ((SocketChannel) _key.channel()).read(readBuffer);
+
+            if (bytesRead < 0) {
+                // Stop reading, the listener closes the channel once it reaches the end of stream.
+                _key.interestOps(_key.interestOps() & ~SelectionKey.OP_READ);
+                session.connection.receiveEndOfStream();
+            } else {
+                readBuffer.flip();
+                session.connection.receive(readBuffer);
+            }
+        } catch (IOException e) {
+            _key.cancel();
+            session.connection.receiveEndOfStream();
+        }
+
+        schedule(session);
+    }
+
+    private void write(SelectionKey _key) {
+        Session session = (Session) _key.attachment();
+
+        try {
+            session.connection.flush();
+        } catch (IOException e) {
+            session.connection.close();
+        }
+    }
+
+
+
+    //// HANDLING PACKETS ////
+
+    /**
+     * Hands the connection's queued lines to its listener on a worker, unless 
+     * they are already being handled. Only one worker handles a connection at 
+     * a time, so its packets are handled in order.
+     */
+    private void schedule(Session _session) {
+        if (!_session.connection.hasLines()) return;
+        if (!_session.connection.scheduled.compareAndSet(false, true)) return;
+
+        if (_session.listener.isDstore()) dstoreWorkers.execute(() -> handleLines(_session));
+        else workers.execute(() -> handleLines(_session));
+    }
+
+    /**
+     * Handles queued lines in order until the queue is empty.
+     */
+    private void handleLines(Session _session) {
+        ChannelConnection connection = _session.connection;
+        ClientDstoreListener listener = _session.listener;
+
+        while (true) {
+            if (connection.atEndOfStream()) {
+                listener.handlePacket(null);
+                return;
+            }
+
+            String packet = connection.pollLine();
+            if (packet == null) {
+                connection.scheduled.set(false);
+
+                // Lines may have been queued after the poll.
+                if (connection.hasLines() && connection.scheduled.compareAndSet(false, true)) continue;
+
+                return;
+            }
+
+            listener.handlePacket(packet);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+/**
+ * Packet connection over a blocking socket.
+ */
+public class SocketConnection implements PacketConnection {
+    private Socket socket;
+
+    private BufferedReader in;
+    private PrintWriter out;
+
+    public SocketConnection(Socket _socket) throws IOException {
+        socket = _socket;
+
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out = new PrintWriter(socket.getOutputStream(), true);
+    }
+
+    @Override
+    public String readLine() throws IOException { return in.readLine(); }
+
+    @Override
+    public void writeLine(String _packet) { out.println(_packet); }
+
+    /**
+     * Checks if the socket is connected and open.
+     */
+    @Override
+    public boolean isConnected() {
+        if (!socket.isConnected()) return false;
+        if (socket.isClosed()) return false;
+
+        return true;
+    }
+
+    @Override
+    public void close() {
+        out.close();
+        try {
+            in.close();
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String getAddress() { 
+        return socket.getInetAddress().getHostAddress() + ":" + socket.getPort(); 
+    }
+}
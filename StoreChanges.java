@@ -31,25 +31,34 @@ public class StoreChanges {
         filesToRemove.add(_file);
     }
 
+    /**
+     * Forget every change to a file, e.g. after it changed while the rebalance was planned.
+     * @param _file
+     */
+    public void dropFile(String _file) {
+        filesToSend.remove(_file);
+        filesToRemove.remove(_file);
+    }
+
     /**
      * Generate a rebalance message from the list of file changes.
      * @return
      */
     public String generateMessage() {
-        String message = "REBALANCE";
+        StringBuilder message = new StringBuilder("REBALANCE");
         
-        message += " " + filesToSend.size();
+        message.append(' ').append(filesToSend.size());
         for (Map.Entry<String, LinkedList<Integer>> fileToSend : filesToSend.entrySet()) {
-            message += " " + fileToSend.getKey();
-            message += " " + fileToSend.getValue().size();
+            message.append(' ').append(fileToSend.getKey());
+            message.append(' ').append(fileToSend.getValue().size());
             for (Integer port : fileToSend.getValue())
-                message += " " + port;
+                message.append(' ').append(port);
         }
 
-        message += " " + filesToRemove.size();
+        message.append(' ').append(filesToRemove.size());
         for (String file : filesToRemove)
-            message += " " + file;
+            message.append(' ').append(file);
 
-        return message;
+        return message.toString();
     }
 }
@@ -0,0 +1,95 @@
+/**
+ * Binary heap of store numbers ordered by their file counts.
+ * 
+ * Tracks each store's position in the heap, so a store 
+ * can be moved after its file count changes.
+ */
+public class StoreHeap {
+    private final int[] counts;
+    private final boolean largestFirst;
+
+    private final int[] heap;
+    private final int[] positions;
+
+    /**
+     * @param _counts file count of each store, read whenever stores are compared.
+     * @param _largestFirst if true the store with the most files is at the top, otherwise the one with the least.
+     */
+    public StoreHeap(int[] _counts, boolean _largestFirst) {
+        counts = _counts;
+        largestFirst = _largestFirst;
+
+        heap = new int[_counts.length];
+        positions = new int[_counts.length];
+        for (int i = 0; i < _counts.length; i++) {
+            heap[i] = i;
+            positions[i] = i;
+        }
+
+        for (int i = heap.length / 2 - 1; i >= 0; i--) siftDown(i);
+    }
+
+    /**
+     * Returns the store at the top of the heap.
+     */
+    public int peek() { return heap[0]; }
+
+    /**
+     * Returns the store at a position in the heap array.
+     * 
+     * Position 0 is the top, and a store's children are at 2p+1 and 2p+2.
+     */
+    public int get(int _position) { return heap[_position]; }
+
+    public int size() { return heap.length; }
+
+    /**
+     * Moves a store to its place after its file count changed.
+     */
+    public void update(int _store) {
+        int position = positions[_store];
+
+        siftUp(position);
+        siftDown(positions[_store]);
+    }
+
+    private boolean before(int _storeA, int _storeB) {
+        if (counts[_storeA] == counts[_storeB]) return _storeA < _storeB;
+
+        return largestFirst ? counts[_storeA] > counts[_storeB] : counts[_storeA] < counts[_storeB];
+    }
+
+    private void siftUp(int _position) {
+        while (_position > 0) {
+            int parent = (_position - 1) / 2;
+            if (!before(heap[_position], heap[parent])) return;
+
+            swap(_position, parent);
+            _position = parent;
+        }
+    }
+
+    private void siftDown(int _position) {
+        while (true) {
+            int first = _position;
+            int left = 2 * _position + 1;
+            int right = left + 1;
+
+            if (left < heap.length && before(heap[left], heap[first])) first = left;
+            if (right < heap.length && before(heap[right], heap[first])) first = right;
+            if (first == _position) return;
+
+            swap(_position, first);
+            _position = first;
+        }
+    }
+
+    private void swap(int _a, int _b) {
+        int store = heap[_a];
+        heap[_a] = heap[_b];
+        heap[_b] = store;
+
+        positions[heap[_a]] = _a;
+        positions[heap[_b]] = _b;
+    }
+}
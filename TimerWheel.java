@@ -0,0 +1,135 @@
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed wheel timer for expiring large numbers of pending operations.
+ * 
+ * Timeouts are placed into one of a fixed number of buckets depending on their 
+ * deadline. Each tick, one thread expires the timeouts in the current bucket, 
+ * so the cost of scheduling and cancelling a timeout doesn't grow with the 
+ * number of timeouts pending. Deadlines are rounded up to the next tick.
+ */
+public class TimerWheel extends Thread {
+
+    /**
+     * Scheduled task that can be cancelled before it runs.
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+
+        /**
+         * Number of full turns of the wheel left before the timeout expires.
+         */
+        private long remainingRounds;
+
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable _task, long _deadline) {
+            task = _task;
+            deadline = _deadline;
+        }
+
+        public void cancel() { cancelled = true; }
+    }
+
+    private final long tickDuration;
+    private final LinkedList<Timeout>[] buckets;
+
+    /**
+     * Timeouts scheduled since the last tick, waiting to be put into a bucket.
+     */
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts;
+
+    private final long startTime;
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(int _tickMillis, int _bucketCount, String _name) {
+        super(_name);
+        setDaemon(true);
+
+        tickDuration = TimeUnit.MILLISECONDS.toNanos(_tickMillis);
+        buckets = (LinkedList<Timeout>[]) new LinkedList<?>[_bucketCount];
+        for (int i = 0; i < _bucketCount; i++) buckets[i] = new LinkedList<Timeout>();
+
+        newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+        startTime = System.nanoTime();
+        tick = 0;
+    }
+
+    /**
+     * Schedules a task to run after a delay.
+     * 
+     * The task runs on the timer thread, so it must not block.
+     */
+    public Timeout schedule(Runnable _task, long _delayMillis) {
+        Timeout timeout = new Timeout(_task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_delayMillis));
+        newTimeouts.add(timeout);
+
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            // Sleep until the start of the next tick.
+            long sleepTime = startTime + (tick + 1) * tickDuration - System.nanoTime();
+            if (sleepTime > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepTime);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            addNewTimeouts();
+            expireTimeouts(buckets[(int) (tick % buckets.length)]);
+
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into the bucket for their deadline.
+     */
+    private void addNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.cancelled) continue;
+
+            long deadlineTick = (timeout.deadline - startTime + tickDuration - 1) / tickDuration;
+            long targetTick = Math.max(deadlineTick - 1, tick);
+
+            timeout.remainingRounds = (targetTick - tick) / buckets.length;
+            buckets[(int) (targetTick % buckets.length)].add(timeout);
+        }
+    }
+
+    /**
+     * Runs the timeouts in a bucket that are due this round.
+     */
+    private void expireTimeouts(LinkedList<Timeout> _bucket) {
+        Iterator<Timeout> timeouts = _bucket.iterator();
+        while (timeouts.hasNext()) {
+            Timeout timeout = timeouts.next();
+
+            if (timeout.cancelled) {
+                timeouts.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                timeouts.remove();
+
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Message.error("timer task failed: " + e.getMessage(), 0);
+                }
+            }
+        }
+    }
+}